@@ -1,11 +1,18 @@
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.util.ArrayList;
-import java.util.BitSet;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.HashSet;
+import java.util.Set;
 
 /*
  * Converts instruction set to machine code
@@ -37,7 +44,9 @@ import java.util.regex.Pattern;
  * beq {INST OP_REG_1, OP_REG_2 LABEL}
  * bne {INST OP_REG_1, OP_REG_2 LABEL}
  * 
- * labels: 
+ * labels: {LABEL:}
+ * 
+ * Anything after # is a comment
  */
 public class Assembler {
 
@@ -47,373 +56,498 @@ public class Assembler {
         String[] arguments;
     }
 
-    HashMap<String, String> regexMatcher;
-    HashMap<String, Integer> labels;
+    private static final int OUTPUT_BUFFER = 64 * 1024;
 
-    Assembler() {
-        this.regexMatcher = new HashMap<>();
-        this.labels = new HashMap<>();
-        // Register regex
-        final String register_regex = "\\$(0|[kv][01]|at|a[0123]|s[0-7]|t[0-9]|gp|sp|fp|ra)";
-        // Type 1
-        final String reg_offset_reg = "\\s+" + register_regex + "\\s*,\\s*(-?\\d+)\\(" + register_regex + "\\)\\s*";
-        this.regexMatcher.put("LW", "lw" + reg_offset_reg);
-        this.regexMatcher.put("SW", "sw" + reg_offset_reg);
-        // Type 2
-        final String reg_reg_reg = "\\s+" + register_regex + "\\s*,\\s*" + register_regex + "\\s*,\\s*" + register_regex + "\\s*";
-        this.regexMatcher.put("ADD", "add" + reg_reg_reg);
-        this.regexMatcher.put("SUB", "sub" + reg_reg_reg);
-        this.regexMatcher.put("AND", "and" + reg_reg_reg);
-        this.regexMatcher.put("OR", "or" + reg_reg_reg);
-        this.regexMatcher.put("SLT", "slt" + reg_reg_reg);
-        // Type 3
-        final String reg_reg_const = "\\s+" + register_regex + "\\s*,\\s*" + register_regex + "\\s*,\\s*(-?\\d+)\\s*";
-        this.regexMatcher.put("ADDI", "addi" + reg_reg_const);
-        this.regexMatcher.put("ANDI", "andi" + reg_reg_const);
-        this.regexMatcher.put("ORI", "ori" + reg_reg_const);
-        this.regexMatcher.put("SLL", "sll" + reg_reg_const);
-        this.regexMatcher.put("SLTI", "slti" + reg_reg_const);
-        // Type 4
-        final String reg_const = "\\s+" + register_regex + "\\s*,\\s*(-?\\d+)\\s*";
-        this.regexMatcher.put("LUI", "lui" + reg_const);
-        // Type 5
-        final String reg = "\\s+" + register_regex + "\\s*";
-        this.regexMatcher.put("JR", "jr" + reg);
-        // Type 6
-        final String immediate = "\\s+(\\w+)\\s*";
-        this.regexMatcher.put("J", "j" + immediate);
-        // Type 7
-        final String reg_reg_label = "\\s+" + register_regex + "\\s*,\\s*" + register_regex + "\\s*,\\s*(\\w+)\\s*";
-        this.regexMatcher.put("BEQ", "beq" + reg_reg_label);
-        this.regexMatcher.put("BNE", "bne" + reg_reg_label);
-        // Type 8
-        final String label = "\\s*(\\w+)\\s*:\\s*";
-        this.regexMatcher.put("LABEL", label);
-    }
+    // Operand layouts
+    private static final int REG_OFFSET_REG = 1; // INST REG, INT(REG)
+    private static final int REG_REG_REG = 2; // INST REG, REG, REG
+    private static final int REG_REG_CONST = 3; // INST REG, REG, INT
+    private static final int REG_CONST = 4; // INST REG, INT
+    private static final int REG = 5; // INST REG
+    private static final int NAME = 6; // INST LABEL
+    private static final int REG_REG_NAME = 7; // INST REG, REG, LABEL
 
-    Instruction findInstruction(String input) {
-        for (String inst : this.regexMatcher.keySet()) {
-            String regex = this.regexMatcher.get(inst);
-            Pattern pattern = Pattern.compile(regex);
-            Matcher matcher = pattern.matcher(input);
-            if (matcher.find()) {
-                Instruction instruction = new Instruction();
-                instruction.instruction = inst;
-                instruction.arguments = new String[matcher.groupCount()];
-                for (int i = 0; i < instruction.arguments.length; ++i) {
-                    instruction.arguments[i] = matcher.group(i + 1);
-                }
-                return instruction;
-            }
-        }
-        return null;
+    // Mnemonic -> instruction name and operand layout, looked up once per line
+    private static final HashMap<String, String> MNEMONICS = new HashMap<>();
+    private static final HashMap<String, Integer> FORMATS = new HashMap<>();
+    private static final HashMap<String, Integer> REGISTERS = new HashMap<>();
+
+    private static void mnemonic(String name, int format) {
+        MNEMONICS.put(name.toLowerCase(), name);
+        FORMATS.put(name, format);
     }
 
-    private int getRegisterNumber(String register){
-        System.out.println("Fetching register " + register);
-        final String c1 = register.substring(0, register.length() - 1);
-        System.out.println(c1);
-        final String c2 = register.substring(register.length() - 1);
-        System.out.println(c2);
-        if(register.equals("0"))
-            return 0;
-        else if(c1.equals("a")){
-            if(c2.equals("t"))
-                return 1;
-            else{
-                int x = Integer.parseInt(c2);
-                return 4 + x;
-            }
-        }else if(c1.equals("v")){
-            int x = Integer.parseInt(c2);
-            return 2 + x;
-        }else if(c1.equals("t")){
-            int x = Integer.parseInt(c2);
-            if(x <= 7)
-                return 8 + x;
-            else 
-                return 24 + x;
-        }else if(c1.equals("s")){
-            int x = Integer.parseInt(c2);
-            return 16 + x;
-        }else if(c1.equals("k")){
-            int x = Integer.parseInt(c2);
-            return 26 + x;
-        }else if(register.equals("gp")){
-            return 28;
-        }else if(register.equals("sp")){
-            return 29;
-        }else if(register.equals("fp")){
-            return 30;
-        }else if(register.equals("ra")){
-            return 31;
-        }
-        return -1;
-    }
-
-    private void writeNumber(BitSet bits, int start, int length, int number, boolean signed) {
-        // Create bits
-        String binary = null;
-        if (signed) {
-            binary = toTwosComplement(number, length);
-        } else {
-            binary = Integer.toBinaryString(number);
-            binary = (new String(new char[length]).replace('\0', '0')) + binary;
-            binary = binary.substring(binary.length() - length);
+    static {
+        mnemonic("LW", REG_OFFSET_REG);
+        mnemonic("SW", REG_OFFSET_REG);
+        mnemonic("ADD", REG_REG_REG);
+        mnemonic("SUB", REG_REG_REG);
+        mnemonic("AND", REG_REG_REG);
+        mnemonic("OR", REG_REG_REG);
+        mnemonic("SLT", REG_REG_REG);
+        mnemonic("ADDI", REG_REG_CONST);
+        mnemonic("ANDI", REG_REG_CONST);
+        mnemonic("ORI", REG_REG_CONST);
+        mnemonic("SLL", REG_REG_CONST);
+        mnemonic("SLTI", REG_REG_CONST);
+        mnemonic("LUI", REG_CONST);
+        mnemonic("JR", REG);
+        mnemonic("J", NAME);
+        mnemonic("BEQ", REG_REG_NAME);
+        mnemonic("BNE", REG_REG_NAME);
+
+        REGISTERS.put("0", 0);
+        REGISTERS.put("at", 1);
+        for (int i = 0; i < 2; ++i) {
+            REGISTERS.put("v" + i, 2 + i);
+            REGISTERS.put("k" + i, 26 + i);
         }
-        System.out.println(number + " BIN: " + binary);
-        for (int i = start; i < start + length; ++i) {
-            if (binary.charAt(i - start) == '1')
-                bits.set(i, true);
-            else
-                bits.set(i, false);
+        for (int i = 0; i < 4; ++i)
+            REGISTERS.put("a" + i, 4 + i);
+        for (int i = 0; i < 8; ++i) {
+            REGISTERS.put("t" + i, 8 + i);
+            REGISTERS.put("s" + i, 16 + i);
         }
+        REGISTERS.put("t8", 24);
+        REGISTERS.put("t9", 25);
+        REGISTERS.put("gp", 28);
+        REGISTERS.put("sp", 29);
+        REGISTERS.put("fp", 30);
+        REGISTERS.put("ra", 31);
     }
 
-    private void writeNumber(BitSet bits, int start, int length, int number) {
-        writeNumber(bits, start, length, number, false);
+    HashMap<String, Integer> labels;
+    // Labels used by J/BEQ/BNE, only collected for relocatable objects
+    private Set<String> references;
+    private String reference; // label of the last encoded J/BEQ/BNE
+
+    Assembler() {
+        this.labels = new HashMap<>();
     }
 
-    private String toTwosComplement(int number, int length) {
-        String out = "";
-        // Get unsigned
-        String uBin = Integer.toUnsignedString(Math.abs(number), 2);
-        uBin = ((new String(new char[length]).replace('\0', '0')) + uBin);
-        if (number < 0) {
-            boolean found = false;
-            for (int i = 0; i < length; ++i) {
-                final int idx = uBin.length() - 1 - i;
-                if (found) {
-                    out = (uBin.charAt(idx) == '0' ? '1' : '0') + out;
-                } else {
-                    if (uBin.charAt(idx) == '1') {
-                        found = true;
-                    }
-                    out = uBin.charAt(idx) + out;
-                }
-            }
-        } else {
-            uBin = (new String(new char[length]).replace('\0', '0')) + uBin;
-            uBin = uBin.substring(uBin.length() - length);
-            out = uBin;
+    /*
+     * Hand written scanner over a single source line
+     * Every method returns null when the expected token is not there
+     */
+    private static class LineScanner {
+
+        final String line;
+        int pos;
+
+        LineScanner(String line) {
+            this.line = line;
         }
 
-        return out;
-    }
+        void skipSpaces() {
+            while (pos < line.length() && Character.isWhitespace(line.charAt(pos)))
+                ++pos;
+        }
 
-    private void printBitSet(BitSet bits) {
-        for (int i = 0; i < bits.length(); ++i) {
-            System.out.print(bits.get(i) ? 1 : 0);
+        // Only whitespace or a # comment left
+        boolean atEnd() {
+            skipSpaces();
+            return pos == line.length() || line.charAt(pos) == '#';
         }
-        System.out.println();
-    }
-
-    private byte[] toByteArray(BitSet bits, int length) {
-        // Get number of bits
-        final int len = (length + 7) / 8;
-        // System.out.println(len);
-        byte[] output = new byte[len];
-        for (int i = 0; i < output.length * 8; ++i) {
-            int byteIdx = i / 8;
-            int byteOffset = i % 8;
-            if (bits.get(i)) {
-                output[byteIdx] |= (1 << 7 - byteOffset);
-            } else {
-                output[byteIdx] &= ~(1 << 7 - byteOffset);
+
+        boolean accept(char c) {
+            skipSpaces();
+            if (pos < line.length() && line.charAt(pos) == c) {
+                ++pos;
+                return true;
             }
+            return false;
         }
-        return output;
-    }
 
-    byte[] getMachineCode(Instruction inst) throws Exception {
-        BitSet bits = new BitSet(32);
-        switch (inst.instruction) {
-        case "ADD": {
-            bits.set(0, 6, false);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[1]));
-            writeNumber(bits, 11, 5, getRegisterNumber(inst.arguments[2]));
-            writeNumber(bits, 16, 5, getRegisterNumber(inst.arguments[0]));
-            writeNumber(bits, 21, 5, 0);
-            writeNumber(bits, 26, 6, 32);
-            break;
+        String word() {
+            skipSpaces();
+            final int start = pos;
+            while (pos < line.length()) {
+                final char c = line.charAt(pos);
+                if (!(Character.isLetterOrDigit(c) || c == '_'))
+                    break;
+                ++pos;
+            }
+            return pos == start ? null : line.substring(start, pos);
         }
-        case "SUB": {
-            bits.set(0, 6, false);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[1]));
-            writeNumber(bits, 11, 5, getRegisterNumber(inst.arguments[2]));
-            writeNumber(bits, 16, 5, getRegisterNumber(inst.arguments[0]));
-            writeNumber(bits, 21, 5, 0);
-            writeNumber(bits, 26, 6, 34);
-            break;
+
+        String register() {
+            if (!accept('$'))
+                return null;
+            final String name = word();
+            return name != null && REGISTERS.containsKey(name) ? name : null;
         }
-        case "AND": {
-            bits.set(0, 6, false);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[1]));
-            writeNumber(bits, 11, 5, getRegisterNumber(inst.arguments[2]));
-            writeNumber(bits, 16, 5, getRegisterNumber(inst.arguments[0]));
-            writeNumber(bits, 21, 5, 0);
-            writeNumber(bits, 26, 6, 36);
-            break;
+
+        String number() {
+            skipSpaces();
+            final int start = pos;
+            if (pos < line.length() && line.charAt(pos) == '-')
+                ++pos;
+            final int digits = pos;
+            while (pos < line.length() && Character.isDigit(line.charAt(pos)))
+                ++pos;
+            return pos == digits ? null : line.substring(start, pos);
         }
-        case "OR": {
-            bits.set(0, 6, false);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[1]));
-            writeNumber(bits, 11, 5, getRegisterNumber(inst.arguments[2]));
-            writeNumber(bits, 16, 5, getRegisterNumber(inst.arguments[0]));
-            writeNumber(bits, 21, 5, 0);
-            writeNumber(bits, 26, 6, 37);
-            break;
+
+    }
+
+    /*
+     * Parses one line into an instruction or a label
+     * Returns null if the line is not valid
+     */
+    Instruction findInstruction(String input) {
+        LineScanner scanner = new LineScanner(input);
+        final String head = scanner.word();
+        if (head == null)
+            return null;
+        Instruction instruction = new Instruction();
+        if (scanner.accept(':')) {
+            instruction.instruction = "LABEL";
+            instruction.arguments = new String[] { head };
+            return scanner.atEnd() ? instruction : null;
         }
-        case "SLL": {
-            writeNumber(bits, 0, 6, 0);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[1]));// SRC
-            writeNumber(bits, 11, 5, 0);// SRC2
-            writeNumber(bits, 16, 5, getRegisterNumber(inst.arguments[0]));// DST
-            writeNumber(bits, 21, 5, Integer.valueOf(inst.arguments[2])); // SHAMT
-            writeNumber(bits, 26, 6, 0); // FN
+        final String name = MNEMONICS.get(head);
+        if (name == null)
+            return null;
+        instruction.instruction = name;
+        String[] args;
+        switch (FORMATS.get(name)) {
+        case REG_OFFSET_REG: {
+            String dst = scanner.register();
+            String offset = scanner.accept(',') ? scanner.number() : null;
+            String base = scanner.accept('(') ? scanner.register() : null;
+            args = new String[] { dst, offset, base };
+            if (!scanner.accept(')'))
+                return null;
             break;
         }
-        case "SLT": {
-            bits.set(0, 6, false);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[1]));
-            writeNumber(bits, 11, 5, getRegisterNumber(inst.arguments[2]));
-            writeNumber(bits, 16, 5, getRegisterNumber(inst.arguments[0]));
-            writeNumber(bits, 21, 5, 0);
-            writeNumber(bits, 26, 6, 42);
+        case REG_REG_REG: {
+            String a = scanner.register();
+            String b = scanner.accept(',') ? scanner.register() : null;
+            String c = scanner.accept(',') ? scanner.register() : null;
+            args = new String[] { a, b, c };
             break;
         }
-        case "LW": {
-            writeNumber(bits, 0, 6, 35);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[2]));
-            writeNumber(bits, 11, 5, getRegisterNumber(inst.arguments[0]));
-            final int offset = Integer.valueOf(inst.arguments[1]);
-            if(offset % 4 != 0)
-                throw new Exception("Memory offset is not divisible by 4");
-            writeNumber(bits, 16, 16, offset, true);
+        case REG_REG_CONST: {
+            String a = scanner.register();
+            String b = scanner.accept(',') ? scanner.register() : null;
+            String c = scanner.accept(',') ? scanner.number() : null;
+            args = new String[] { a, b, c };
             break;
         }
-        case "SW": {
-            writeNumber(bits, 0, 6, 43);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[2]));
-            writeNumber(bits, 11, 5, getRegisterNumber(inst.arguments[0]));
-            final int offset = Integer.valueOf(inst.arguments[1]);
-            if(offset % 4 != 0)
-                throw new Exception("Memory offset is not divisible by 4");
-            writeNumber(bits, 16, 16, offset, true);
+        case REG_CONST: {
+            String a = scanner.register();
+            String b = scanner.accept(',') ? scanner.number() : null;
+            args = new String[] { a, b };
             break;
         }
-        case "ADDI": {
-            writeNumber(bits, 0, 6, 8);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[1]));
-            writeNumber(bits, 11, 5, getRegisterNumber(inst.arguments[0]));
-            writeNumber(bits, 16, 16, Integer.valueOf(inst.arguments[2]), true);
+        case REG:
+            args = new String[] { scanner.register() };
             break;
-        }
-        case "ANDI": {
-            writeNumber(bits, 0, 6, 12);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[1]));
-            writeNumber(bits, 11, 5, getRegisterNumber(inst.arguments[0]));
-            writeNumber(bits, 16, 16, Integer.valueOf(inst.arguments[2]));
+        case NAME:
+            args = new String[] { scanner.word() };
             break;
-        }
-        case "ORI": {
-            writeNumber(bits, 0, 6, 13);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[1]));
-            writeNumber(bits, 11, 5, getRegisterNumber(inst.arguments[0]));
-            writeNumber(bits, 16, 16, Integer.valueOf(inst.arguments[2]));
+        default: {
+            String a = scanner.register();
+            String b = scanner.accept(',') ? scanner.register() : null;
+            String c = scanner.accept(',') ? scanner.word() : null;
+            args = new String[] { a, b, c };
             break;
         }
-        case "SLTI": {
-            writeNumber(bits, 0, 6, 10);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[1]));
-            writeNumber(bits, 11, 5, getRegisterNumber(inst.arguments[0]));
-            writeNumber(bits, 16, 16, Integer.valueOf(inst.arguments[2]));
-            break;
         }
-        case "LUI": {
-            writeNumber(bits, 0, 6, 15);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[0]));
-            writeNumber(bits, 11, 5, 0);
-            writeNumber(bits, 16, 16, Integer.valueOf(inst.arguments[1]));
-            break;
+        for (String arg : args) {
+            if (arg == null)
+                return null;
         }
-        case "JR": {
-            writeNumber(bits, 0, 6, 0);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[0]));// SRC 1
-            writeNumber(bits, 11, 5, 0); // SRC 2
-            writeNumber(bits, 16, 5, 0);// DST 1
-            writeNumber(bits, 21, 5, 0); // SHAMT
-            writeNumber(bits, 26, 6, 8); // FUNC
-            break;
+        if (!scanner.atEnd())
+            return null;
+        instruction.arguments = args;
+        return instruction;
+    }
+
+    static int getRegisterNumber(String register){
+        Integer number = REGISTERS.get(register);
+        return number == null ? -1 : number;
+    }
+
+    // 6 bits opcode, 5 rs, 5 rt, 5 rd, 5 shamt, 6 fn
+    private static int encodeR(int rs, int rt, int rd, int shamt, int fn) {
+        return rs << 21 | rt << 16 | rd << 11 | shamt << 6 | fn;
+    }
+
+    // 6 bits opcode, 5 rs, 5 rt, 16 immediate
+    private static int encodeI(int opcode, int rs, int rt, int immediate) {
+        return opcode << 26 | rs << 21 | rt << 16 | (immediate & 0xFFFF);
+    }
+
+    private static int parseConstant(String number, int min, int max) throws Exception {
+        final long value;
+        try {
+            value = Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            throw new Exception("Constant " + number + " out of range");
         }
-        case "J": {
-            writeNumber(bits, 0, 6, 2);
-            if (!this.labels.containsKey(inst.arguments[0])) {
-                throw new Exception("Label " + inst.arguments[0] + " not found");
-            }
-            writeNumber(bits, 6, 26, this.labels.get(inst.arguments[0]));// N in program counter
-            break;
+        if (value < min || value > max)
+            throw new Exception("Constant " + number + " out of range [" + min + ", " + max + "]");
+        return (int) value;
+    }
+
+    // Immediates of arithmetic instructions and memory offsets
+    private static int signed16(String number) throws Exception {
+        return parseConstant(number, Short.MIN_VALUE, Short.MAX_VALUE);
+    }
+
+    // Immediates of logical instructions may be written either way, only 16 bits are kept
+    private static int any16(String number) throws Exception {
+        return parseConstant(number, Short.MIN_VALUE, 0xFFFF);
+    }
+
+    private int labelAddress(String label, int max) throws Exception {
+        Integer address = this.labels.get(label);
+        this.reference = label;
+        // Another file defines it, the Linker fills in the field
+        if (address == null && this.references != null)
+            return 0;
+        if (address == null)
+            throw new Exception("Label " + label + " not found");
+        if (address > max)
+            throw new Exception("Label " + label + " is out of reach");
+        return address;
+    }
+
+    private static int memoryOffset(String number) throws Exception {
+        final int offset = signed16(number);
+        if (offset % 4 != 0)
+            throw new Exception("Memory offset is not divisible by 4");
+        return offset;
+    }
+
+    int getMachineCode(Instruction inst) throws Exception {
+        final String[] args = inst.arguments;
+        switch (inst.instruction) {
+        case "ADD":
+            return encodeR(getRegisterNumber(args[1]), getRegisterNumber(args[2]), getRegisterNumber(args[0]), 0, 32);
+        case "SUB":
+            return encodeR(getRegisterNumber(args[1]), getRegisterNumber(args[2]), getRegisterNumber(args[0]), 0, 34);
+        case "AND":
+            return encodeR(getRegisterNumber(args[1]), getRegisterNumber(args[2]), getRegisterNumber(args[0]), 0, 36);
+        case "OR":
+            return encodeR(getRegisterNumber(args[1]), getRegisterNumber(args[2]), getRegisterNumber(args[0]), 0, 37);
+        case "SLT":
+            return encodeR(getRegisterNumber(args[1]), getRegisterNumber(args[2]), getRegisterNumber(args[0]), 0, 42);
+        case "SLL": // SRC in rs, shift amount in shamt
+            return encodeR(getRegisterNumber(args[1]), 0, getRegisterNumber(args[0]), parseConstant(args[2], 0, 31), 0);
+        case "JR":
+            return encodeR(getRegisterNumber(args[0]), 0, 0, 0, 8);
+        case "LW":
+            return encodeI(35, getRegisterNumber(args[2]), getRegisterNumber(args[0]), memoryOffset(args[1]));
+        case "SW":
+            return encodeI(43, getRegisterNumber(args[2]), getRegisterNumber(args[0]), memoryOffset(args[1]));
+        case "ADDI":
+            return encodeI(8, getRegisterNumber(args[1]), getRegisterNumber(args[0]), signed16(args[2]));
+        case "ANDI":
+            return encodeI(12, getRegisterNumber(args[1]), getRegisterNumber(args[0]), any16(args[2]));
+        case "ORI":
+            return encodeI(13, getRegisterNumber(args[1]), getRegisterNumber(args[0]), any16(args[2]));
+        case "SLTI":
+            return encodeI(10, getRegisterNumber(args[1]), getRegisterNumber(args[0]), signed16(args[2]));
+        case "LUI": // DST in rs
+            return encodeI(15, getRegisterNumber(args[0]), 0, any16(args[1]));
+        case "J": // N in program counter
+            return 2 << 26 | labelAddress(args[0], 0x3FFFFFF);
+        case "BEQ":
+            return encodeI(4, getRegisterNumber(args[0]), getRegisterNumber(args[1]), labelAddress(args[2], 0xFFFF));
+        case "BNE":
+            return encodeI(5, getRegisterNumber(args[0]), getRegisterNumber(args[1]), labelAddress(args[2], 0xFFFF));
         }
-        case "BEQ": {
-            writeNumber(bits, 0, 6, 4);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[0]));
-            writeNumber(bits, 11, 5, getRegisterNumber(inst.arguments[1]));
-            // Write label number
-            if (!this.labels.containsKey(inst.arguments[2])) {
-                throw new Exception("Label " + inst.arguments[2] + " not found");
+        throw new Exception("Unknown instruction " + inst.instruction);
+    }
+
+    // Opens the source again for every pass
+    interface Source {
+        BufferedReader open() throws IOException;
+    }
+
+    private interface WordSink {
+        void write(int word, int line) throws IOException;
+    }
+
+    private static boolean isJump(Instruction inst) {
+        return inst.instruction.equals("J") || inst.instruction.equals("BEQ") || inst.instruction.equals("BNE");
+    }
+
+    private static boolean isBlank(String line) {
+        final String trimmed = line.trim();
+        return trimmed.isEmpty() || trimmed.charAt(0) == '#';
+    }
+
+    /*
+     * Pass one, checks syntax and records label positions only
+     * Returns the number of instructions
+     */
+    private int collectLabels(Source source) throws Exception {
+        this.labels.clear();
+        if (this.references != null)
+            this.references.clear();
+        int count = 0;
+        try (BufferedReader reader = source.open()) {
+            String line;
+            for (int i = 1; (line = reader.readLine()) != null; ++i) {
+                if (isBlank(line))
+                    continue;
+                Instruction inst = this.findInstruction(line);
+                if (inst == null) {
+                    throw new Exception("Line " + i + " \'" + line + "\' is not a valid instruction");
+                } else if (inst.instruction.equals("LABEL")) {
+                    if (this.labels.containsKey(inst.arguments[0])) {
+                        throw new Exception("Label " + inst.arguments[0] + " duplicate, line " + i);
+                    }
+                    // Adding label
+                    this.labels.put(inst.arguments[0], count); // Point to the next instruction
+                } else {
+                    if (this.references != null && isJump(inst))
+                        this.references.add(inst.arguments[inst.arguments.length - 1]);
+                    ++count;
+                }
             }
-            writeNumber(bits, 16, 16, this.labels.get(inst.arguments[2]));
-            break;
         }
-        case "BNE": {
-            writeNumber(bits, 0, 6, 5);
-            writeNumber(bits, 6, 5, getRegisterNumber(inst.arguments[0]));
-            writeNumber(bits, 11, 5, getRegisterNumber(inst.arguments[1]));
-            if (!this.labels.containsKey(inst.arguments[2])) {
-                throw new Exception("Label " + inst.arguments[2] + " not found");
+        return count;
+    }
+
+    // Pass two, encodes every instruction in order
+    private void encode(Source source, WordSink sink) throws Exception {
+        try (BufferedReader reader = source.open()) {
+            String line;
+            for (int i = 1; (line = reader.readLine()) != null; ++i) {
+                if (isBlank(line))
+                    continue;
+                Instruction inst = this.findInstruction(line);
+                // The source may have changed since pass one
+                if (inst == null)
+                    throw new Exception("Line " + i + " \'" + line + "\' is not a valid instruction");
+                if (inst.instruction.equals("LABEL"))
+                    continue;
+                try {
+                    this.reference = null;
+                    sink.write(this.getMachineCode(inst), i);
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new Exception("Line " + i + ": " + e.getMessage());
+                }
             }
-            writeNumber(bits, 16, 16, this.labels.get(inst.arguments[2]));
-            break;
         }
+    }
+
+    /*
+     * Streams the source twice and writes a raw stream of big-endian words to out
+     * Only the label table and fixed size buffers are held in memory
+     */
+    public void assemble(Source source, WritableByteChannel out) throws Exception {
+        collectLabels(source);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER);
+        encode(source, (word, line) -> {
+            if (!buffer.hasRemaining())
+                flush(buffer, out);
+            buffer.putInt(word);
+        });
+        flush(buffer, out);
+    }
+
+    public void assemble(Path source, WritableByteChannel out) throws Exception {
+        assemble(() -> Files.newBufferedReader(source), out);
+    }
+
+    // Like assemble, but writes an ObjectFile with the labels as symbols and a line table
+    public void assembleObject(Source source, FileChannel out) throws Exception {
+        final int count = collectLabels(source);
+        final ObjectFile.Writer writer = new ObjectFile.Writer(out, count, new int[0], Memory.GLOBAL_POINTER,
+                this.labels, new HashMap<>(), null, true);
+        encode(source, writer::word);
+        writer.finish();
+    }
+
+    /*
+     * Writes a relocatable ObjectFile for the Linker
+     * Labels missing from this source become undefined symbols and every
+     * J/BEQ/BNE gets a relocation, local targets included, since the text
+     * moves when it is linked after other files
+     */
+    public void assembleRelocatable(Source source, FileChannel out) throws Exception {
+        this.references = new HashSet<>();
+        try {
+            final int count = collectLabels(source);
+            final Set<String> undefined = new HashSet<>(this.references);
+            undefined.removeAll(this.labels.keySet());
+            final ObjectFile.Writer writer = new ObjectFile.Writer(out, count, new int[0], Memory.GLOBAL_POINTER,
+                    this.labels, new HashMap<>(), undefined, true);
+            final int[] pc = new int[1];
+            encode(source, (word, line) -> {
+                if (this.reference != null)
+                    writer.relocate(pc[0], this.reference);
+                writer.word(word, line);
+                ++pc[0];
+            });
+            writer.finish();
+        } finally {
+            this.references = null;
         }
-        return toByteArray(bits, 32);
-    }
-
-    public ArrayList<byte[]> compileCode(String code) throws Exception {
-        String[] lines = code.split("\n");
-        ArrayList<Instruction> instructions = new ArrayList<>();
-        ArrayList<byte[]> output = new ArrayList<>();
-        // Parse to find syntax errors and save label positions
-        for (int i = 0; i < lines.length; ++i) {
-            final String line = lines[i];
-            if (line.trim().equals(""))
-                continue;
-            Instruction inst = this.findInstruction(line);
-            if (inst == null) {
-                throw new Exception("Line " + (i + 1) + " \'" + line + "\' is not a valid instruction");
-            } else if (inst.instruction.equals("LABEL")) {
-                if (this.labels.containsKey(inst.arguments[0])) {
-                    throw new Exception("Label " + inst.arguments[0] + " duplicate, line " + (i + 1));
-                }
-                // Adding label
-                this.labels.put(inst.arguments[0], instructions.size()); // Point to the next instruction
-            } else {
-                instructions.add(inst);
+    }
+
+    public void assembleRelocatable(Path source, Path output) throws Exception {
+        replace(output, out -> assembleRelocatable(() -> Files.newBufferedReader(source), out));
+    }
+
+    // Writes output as an ObjectFile
+    public void assembleFile(Path source, Path output) throws Exception {
+        assemble(() -> Files.newBufferedReader(source), output);
+    }
+
+    private void assemble(Source source, Path output) throws Exception {
+        replace(output, out -> assembleObject(source, out));
+    }
+
+    private interface Output {
+        void write(FileChannel out) throws Exception;
+    }
+
+    /*
+     * Writes next to output and moves the file into place once it is
+     * complete, an error leaves the previous output as it was
+     */
+    private static void replace(Path output, Output body) throws Exception {
+        final Path temporary = Paths.get(output + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                body.write(out);
             }
+            try {
+                Files.move(temporary, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, output, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
         }
-        for (int i = 0; i < instructions.size(); ++i) {
-            output.add(this.getMachineCode(instructions.get(i)));
-        }
+    }
+
+    private static void flush(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            out.write(buffer);
+        buffer.clear();
+    }
+
+    public int[] compileCode(String code) throws Exception {
+        final Source source = () -> new BufferedReader(new StringReader(code));
+        final int[] output = new int[collectLabels(source)];
+        final int[] next = new int[1];
+        encode(source, (word, line) -> output[next[0]++] = word);
         return output;
     }
 
     public void writeMachineCodeToFile(String filename, String code) throws Exception {
-        ArrayList<byte[]> codes = this.compileCode(code);
-        FileOutputStream dos = new FileOutputStream(new File(filename));
-        for (byte[] buffer : codes) {
-            dos.write(buffer);
-        }
-        dos.close();
+        assemble(() -> new BufferedReader(new StringReader(code)), Paths.get(filename));
     }
 
 }
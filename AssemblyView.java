@@ -0,0 +1,115 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.PlainView;
+import javax.swing.text.Segment;
+import javax.swing.text.Utilities;
+
+/*
+ * Plain text view that colours assembly source
+ * PlainView only paints the lines inside the clip and edits only damage
+ * the lines they touch, so lexing at paint time never looks at more than
+ * the visible lines whatever the size of the file, and keeps no token
+ * state that edits could invalidate
+ * Selected text keeps the selection colour
+ */
+class AssemblyView extends PlainView {
+
+    static final byte PLAIN = 0;
+    static final byte MNEMONIC = 1;
+    static final byte REGISTER = 2;
+    static final byte NUMBER = 3;
+    static final byte LABEL = 4;
+    static final byte COMMENT = 5;
+
+    private static final Color[] COLORS = { null, new Color(0x00, 0x00, 0xA0), new Color(0x80, 0x00, 0x80),
+            new Color(0x00, 0x70, 0x00), new Color(0xA0, 0x50, 0x00), new Color(0x80, 0x80, 0x80) };
+
+    private final Segment line = new Segment();
+    private byte[] classes = new byte[256];
+
+    AssemblyView(Element element) {
+        super(element);
+    }
+
+    @Override
+    protected float drawUnselectedText(Graphics2D g, float x, float y, int p0, int p1) throws BadLocationException {
+        final Document document = getDocument();
+        final Element root = document.getDefaultRootElement();
+        final int start = root.getElement(root.getElementIndex(p0)).getStartOffset();
+        // Tokens depend on what comes before them on the line, so lex from its start
+        document.getText(start, p1 - start, line);
+        if (classes.length < line.count)
+            classes = new byte[Math.max(line.count, classes.length * 2)];
+        lex(line.array, line.offset, line.count, classes);
+
+        final int end = line.offset + line.count;
+        int from = line.offset + (p0 - start);
+        while (from < end) {
+            final byte kind = classes[from - line.offset];
+            int to = from + 1;
+            while (to < end && classes[to - line.offset] == kind)
+                ++to;
+            g.setColor(kind == PLAIN ? getContainer().getForeground() : COLORS[kind]);
+            final Segment run = new Segment(line.array, from, to - from);
+            x = Utilities.drawTabbedText(run, x, y, g, this, start + from - line.offset);
+            from = to;
+        }
+        return x;
+    }
+
+    /*
+     * Classifies every char of one line: the first word is a mnemonic, or a
+     * label when a colon follows and then the next word is, $ starts a
+     * register, digits and - start numbers, other words are label references
+     * and # comments out the rest
+     */
+    static void lex(char[] text, int offset, int count, byte[] classes) {
+        final int end = offset + count;
+        boolean first = true;
+        int i = offset;
+        while (i < end) {
+            final char c = text[i];
+            if (c == '#') {
+                fill(classes, i - offset, end - offset, COMMENT);
+                return;
+            }
+            if (!isWord(c) && c != '$' && c != '-') {
+                classes[i - offset] = PLAIN;
+                ++i;
+                continue;
+            }
+            int j = i + 1;
+            while (j < end && isWord(text[j]))
+                ++j;
+            byte kind;
+            if (c == '$') {
+                kind = REGISTER;
+            } else if (c == '-' || Character.isDigit(c)) {
+                kind = NUMBER;
+            } else if (first && j < end && text[j] == ':') {
+                kind = LABEL;
+                ++j;
+            } else {
+                kind = first ? MNEMONIC : LABEL;
+            }
+            fill(classes, i - offset, j - offset, kind);
+            // An instruction may follow a label on the same line
+            first = kind == LABEL && first;
+            i = j;
+        }
+    }
+
+    private static boolean isWord(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+    }
+
+    private static void fill(byte[] classes, int from, int to, byte kind) {
+        for (int i = from; i < to; ++i)
+            classes[i] = kind;
+    }
+
+}
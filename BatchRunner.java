@@ -0,0 +1,290 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/*
+ * Runs many programs, or one program against many initial states, in
+ * parallel on the common ForkJoin pool
+ * Every job gets its own Machine, programs are decoded once and shared,
+ * so are the blocks the JIT engine translates from them
+ *
+ * Usage: --batch DIR [--program FILE] [--engine INTERPRETER|THREADED|JIT]
+ *                    [--max-steps N] [--out FILE] [--metrics SECONDS]
+ *                    [--checkpoint SECONDS]
+ * Without --program every *.o file in DIR is run from a clean state
+ * With --program every file in DIR is an initial image for that program,
+ * one assignment per line: "$t0 = 5" or "0x10010000 = 7", # starts a comment
+ * --metrics counts instructions of every finished job into a total that is
+ * registered as an MBean and printed to stderr every SECONDS and at the end
+ * --checkpoint saves every running job to DIR/checkpoints/NAME.ckpt every
+ * SECONDS, a rerun resumes unfinished jobs from there, finished jobs drop
+ * their checkpoint
+ */
+class BatchRunner {
+
+    static final long DEFAULT_MAX_STEPS = 1000000000L;
+    // Instructions between two looks at the checkpoint clock
+    private static final long CHECKPOINT_CHUNK = 10000000L;
+
+    static class Job {
+        String name;
+        Path program;
+        Path image;
+    }
+
+    static class Result {
+        String name;
+        String status;
+        long steps;
+        int pc;
+        int[] registers;
+        long nanos;
+    }
+
+    private final Machine.Engine engine;
+    private final long maxSteps;
+    private Metrics metrics;
+    private Path checkpoints; // null when jobs are not checkpointed
+    private long checkpointPeriod;
+
+    BatchRunner(Machine.Engine engine, long maxSteps) {
+        this.engine = engine;
+        this.maxSteps = maxSteps;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setCheckpoints(Path dir, long periodNanos) {
+        this.checkpoints = dir;
+        this.checkpointPeriod = periodNanos;
+    }
+
+    List<Result> runAll(List<Job> jobs) {
+        sharedPaths = jobs.stream().collect(Collectors.groupingBy(job -> job.program, Collectors.counting()))
+                .entrySet().stream().filter(uses -> uses.getValue() > 1).map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+        try {
+            return jobs.parallelStream().map(this::run).collect(Collectors.toList());
+        } finally {
+            shared.clear();
+        }
+    }
+
+    Result run(Job job) {
+        Result result = new Result();
+        result.name = job.name;
+        final long start = System.nanoTime();
+        Machine machine = new Machine();
+        machine.setEngine(engine);
+        if (metrics != null)
+            machine.setMetrics(new Metrics());
+        try {
+            machine.load(loadShared(job.program));
+            if (job.image != null)
+                applyImage(machine, job.image);
+            if (checkpoints == null)
+                machine.run(maxSteps);
+            else
+                runWithCheckpoints(machine, checkpoints.resolve(job.name + ".ckpt"));
+            result.status = machine.isHalted() ? "HALTED" : "STEP_LIMIT";
+        } catch (IOException e) {
+            result.status = "ERROR " + e.getMessage();
+        } catch (RuntimeException e) {
+            result.status = "FAULT " + e.getMessage();
+        }
+        if (metrics != null)
+            metrics.merge(machine.getMetrics());
+        result.steps = machine.getSteps();
+        result.pc = machine.getPC();
+        result.registers = machine.registers.clone();
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private void runWithCheckpoints(Machine machine, Path checkpoint) throws IOException {
+        if (Files.exists(checkpoint))
+            Checkpoint.restore(machine, checkpoint);
+        long lastSave = System.nanoTime();
+        while (!machine.isHalted() && machine.getSteps() < maxSteps) {
+            machine.run(Math.min(CHECKPOINT_CHUNK, maxSteps - machine.getSteps()));
+            final long now = System.nanoTime();
+            if (now - lastSave >= checkpointPeriod && !machine.isHalted()) {
+                Checkpoint.save(machine, checkpoint);
+                lastSave = now;
+            }
+        }
+        Files.deleteIfExists(checkpoint);
+    }
+
+    // Programs run by more than one job, decoded once by whichever job needs them first
+    private final ConcurrentHashMap<Path, Program> shared = new ConcurrentHashMap<>();
+    private Set<Path> sharedPaths = Collections.emptySet();
+
+    // Only jobs of the same shared program wait for each other, other files load in parallel
+    private Program loadShared(Path path) throws IOException {
+        if (!sharedPaths.contains(path))
+            return Program.load(path);
+        try {
+            return shared.computeIfAbsent(path, p -> {
+                try {
+                    return Program.load(p);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    static void applyImage(Machine machine, Path image) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(image)) {
+            String line;
+            for (int i = 1; (line = reader.readLine()) != null; ++i) {
+                final int comment = line.indexOf('#');
+                if (comment >= 0)
+                    line = line.substring(0, comment);
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                final int eq = line.indexOf('=');
+                if (eq < 0)
+                    throw new IOException(image.getFileName() + " line " + i + ": expected TARGET = VALUE");
+                final String target = line.substring(0, eq).trim();
+                final int value;
+                try {
+                    value = Integer.decode(line.substring(eq + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException(image.getFileName() + " line " + i + ": bad value");
+                }
+                if (target.startsWith("$")) {
+                    final int n = Assembler.getRegisterNumber(target.substring(1));
+                    if (n < 0)
+                        throw new IOException(image.getFileName() + " line " + i + ": unknown register " + target);
+                    machine.setRegister(n, value);
+                } else {
+                    try {
+                        machine.getMemory().storeWord(Long.decode(target).intValue(), value);
+                    } catch (RuntimeException e) {
+                        throw new IOException(image.getFileName() + " line " + i + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    static void writeSummary(List<Result> results, long wallNanos, Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        out.print("# name status steps pc");
+        for (int n = 0; n < Machine.REGISTER_COUNT; ++n)
+            out.print(" " + Machine.getRegisterName(n));
+        out.println();
+        long steps = 0;
+        for (Result r : results) {
+            steps += r.steps;
+            out.print(r.name + "\t" + r.status + "\t" + r.steps + "\t" + r.pc);
+            for (int value : r.registers)
+                out.print("\t" + value);
+            out.println();
+        }
+        out.printf("# %d jobs, %d instructions in %.3f s, %.0f instructions/s%n", results.size(), steps,
+                wallNanos / 1e9, steps * 1e9 / Math.max(1, wallNanos));
+        out.flush();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dir = null;
+        Path program = null;
+        Path output = null;
+        Machine.Engine engine = Machine.Engine.JIT;
+        long maxSteps = DEFAULT_MAX_STEPS;
+        long metricsPeriod = 0;
+        long checkpointPeriod = 0;
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+            case "--batch":
+                dir = Paths.get(args[++i]);
+                break;
+            case "--program":
+                program = Paths.get(args[++i]);
+                break;
+            case "--engine":
+                engine = Machine.Engine.valueOf(args[++i].toUpperCase());
+                break;
+            case "--max-steps":
+                maxSteps = Long.parseLong(args[++i]);
+                break;
+            case "--metrics":
+                metricsPeriod = Long.parseLong(args[++i]);
+                break;
+            case "--checkpoint":
+                checkpointPeriod = Long.parseLong(args[++i]);
+                break;
+            case "--out":
+                output = Paths.get(args[++i]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (dir == null)
+            throw new IllegalArgumentException("--batch DIR is required");
+
+        List<Job> jobs = new ArrayList<>();
+        try (DirectoryStream<Path> files = program == null ? Files.newDirectoryStream(dir, "*.o")
+                : Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (!Files.isRegularFile(file))
+                    continue;
+                Job job = new Job();
+                job.name = file.getFileName().toString();
+                job.program = program == null ? file : program;
+                job.image = program == null ? null : file;
+                jobs.add(job);
+            }
+        }
+        jobs.sort((a, b) -> a.name.compareTo(b.name));
+
+        BatchRunner runner = new BatchRunner(engine, maxSteps);
+        if (checkpointPeriod > 0) {
+            final Path checkpoints = dir.resolve("checkpoints");
+            Files.createDirectories(checkpoints);
+            runner.setCheckpoints(checkpoints, checkpointPeriod * 1000000000L);
+        }
+        Metrics metrics = null;
+        if (metricsPeriod > 0) {
+            metrics = new Metrics();
+            metrics.register("batch");
+            metrics.startDump(metricsPeriod, System.err);
+            runner.setMetrics(metrics);
+        }
+        final long start = System.nanoTime();
+        List<Result> results = runner.runAll(jobs);
+        final long wall = System.nanoTime() - start;
+        if (output == null) {
+            writeSummary(results, wall, new PrintWriter(System.out));
+        } else {
+            try (Writer writer = Files.newBufferedWriter(output)) {
+                writeSummary(results, wall, writer);
+            }
+        }
+        if (metrics != null)
+            System.err.print(metrics.getReport());
+    }
+
+}
@@ -0,0 +1,140 @@
+import java.lang.management.ManagementFactory;
+
+/*
+ * Repeatable micro benchmarks for the assembler and simulator hot paths
+ * Each benchmark is warmed up and then measured over several iterations,
+ * reporting time per operation, instructions (or lines) per second and
+ * bytes allocated per operation by the benchmark thread
+ *
+ * Usage: java Benchmark [assemble|decode|execute|all] [iterations]
+ *    or: gradle benchmark -Pbench=GROUP,ITERATIONS
+ */
+class Benchmark {
+
+    interface Body {
+        // Returns the number of units (lines, words or instructions) processed
+        long run() throws Exception;
+    }
+
+    private static final int WARMUP = 3;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        final String which = args.length > 0 ? args[0] : "all";
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        if (which.equals("assemble") || which.equals("all")) {
+            for (int lines : new int[] { 1000, 100000, 1000000 }) {
+                final String source = generateSource(lines);
+                measure("assemble " + lines + " lines", "lines", iterations, () -> {
+                    sink += new Assembler().compileCode(source).length;
+                    return lines;
+                });
+            }
+        }
+        if (which.equals("decode") || which.equals("all")) {
+            final int[] words = new Assembler().compileCode(generateSource(100000));
+            measure("decode " + words.length + " words", "words", iterations, () -> {
+                sink += new Program(words).length();
+                return words.length;
+            });
+        }
+        if (which.equals("execute") || which.equals("all")) {
+            final Program program = new Program(new Assembler().compileCode(loopProgram(2000)));
+            final Machine machine = new Machine();
+            for (Machine.Engine engine : Machine.Engine.values()) {
+                machine.setEngine(engine);
+                measure("execute " + engine.name().toLowerCase(), "instructions", iterations, () -> {
+                    machine.load(program);
+                    return machine.run(Long.MAX_VALUE);
+                });
+            }
+            final CacheModel caches = CacheModel.parse("l1i 4K 1 32\nl1d 4K 2 32\nl2 64K 8 64\n", program.length());
+            machine.addTracer(caches);
+            measure("execute with caches", "instructions", iterations, () -> {
+                machine.load(program);
+                caches.reset();
+                return machine.run(Long.MAX_VALUE);
+            });
+            machine.removeTracer(caches);
+            final PipelineModel pipeline = new PipelineModel(program, true, false, null);
+            machine.addTracer(pipeline);
+            measure("execute with pipeline", "instructions", iterations, () -> {
+                machine.load(program);
+                pipeline.reset();
+                return machine.run(Long.MAX_VALUE);
+            });
+            machine.removeTracer(pipeline);
+            final BranchModel branches = BranchModel.parse("predictor 2bit 1024\npredictor gshare 4096\nbtb 256\n",
+                    program);
+            machine.addTracer(branches);
+            measure("execute with predictors", "instructions", iterations, () -> {
+                machine.load(program);
+                branches.reset();
+                return machine.run(Long.MAX_VALUE);
+            });
+            machine.removeTracer(branches);
+        }
+    }
+
+    static void measure(String name, String unit, int iterations, Body body) throws Exception {
+        for (int i = 0; i < WARMUP; ++i) {
+            body.run();
+        }
+        final long thread = Thread.currentThread().getId();
+        long units = 0;
+        final long allocStart = THREADS.getThreadAllocatedBytes(thread);
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            units += body.run();
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = THREADS.getThreadAllocatedBytes(thread) - allocStart;
+        System.out.printf("%-28s %10.3f ms/op %14.0f %s/s %14d B/op%n", name, elapsed / 1e6 / iterations,
+                units * 1e9 / elapsed, unit, allocated / iterations);
+    }
+
+    // Straight-line code with a label and backward jumps every 16 lines
+    // Branch targets are absolute 16 bit instruction indices, so conditional branches go to the first label
+    static String generateSource(int lines) {
+        final String[] body = { "add $t0, $t1, $t2", "addi $t1, $t1, 4", "sub $t2, $t0, $t1", "and $t3, $t0, $t2",
+                "or $t4, $t3, $t1", "slt $t5, $t4, $t0", "ori $t6, $t5, 255", "andi $t7, $t6, 15",
+                "sll $s0, $t7, 2", "slti $s1, $s0, 100", "lui $s2, 16", "sw $t0, 8($gp)", "lw $t1, 8($gp)",
+                "beq $t0, $t1, L0", "j L" };
+        StringBuilder sb = new StringBuilder(lines * 20);
+        int label = 0;
+        for (int i = 0; i < lines; ++i) {
+            final int slot = i % 16;
+            if (slot == 0) {
+                sb.append("L").append(label++).append(":\n");
+            } else {
+                String line = body[slot - 1];
+                if (line.endsWith(" L"))
+                    line = line + (label - 1);
+                sb.append(line).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    // Two nested loops writing and reading back an array of n words
+    static String loopProgram(int n) {
+        return "addi $t0, $0, 0\n"
+                + "addi $t1, $0, " + n + "\n"
+                + "outer:\n"
+                + "addi $t2, $0, 0\n"
+                + "inner:\n"
+                + "sll $t3, $t2, 2\n"
+                + "add $t3, $t3, $gp\n"
+                + "sw $t2, 0($t3)\n"
+                + "lw $t4, 0($t3)\n"
+                + "add $s0, $s0, $t4\n"
+                + "addi $t2, $t2, 1\n"
+                + "bne $t2, $t1, inner\n"
+                + "addi $t0, $t0, 1\n"
+                + "bne $t0, $t1, outer\n";
+    }
+
+}
@@ -0,0 +1,362 @@
+import java.util.Arrays;
+
+/*
+ * Threaded code execution engine
+ * The program is split into basic blocks, straight-line runs of
+ * instructions ending with BEQ, BNE, J, JR or the end of the program
+ * Every block is compiled once into an array of pre-bound operations and
+ * keeps direct links to its successor blocks, so dispatch happens once
+ * per block instead of once per instruction
+ * A run stops at the first block boundary at or past its step budget
+ * With translation enabled hot blocks are handed to the JitCompiler
+ */
+class BlockEngine {
+
+    // One instruction with its operands already bound
+    abstract static class Op {
+        abstract void run(int[] r, Memory m);
+    }
+
+    static final class Add extends Op {
+        final int rd, rs, rt;
+        Add(int rd, int rs, int rt) { this.rd = rd; this.rs = rs; this.rt = rt; }
+        void run(int[] r, Memory m) { r[rd] = r[rs] + r[rt]; }
+    }
+
+    static final class Sub extends Op {
+        final int rd, rs, rt;
+        Sub(int rd, int rs, int rt) { this.rd = rd; this.rs = rs; this.rt = rt; }
+        void run(int[] r, Memory m) { r[rd] = r[rs] - r[rt]; }
+    }
+
+    static final class And extends Op {
+        final int rd, rs, rt;
+        And(int rd, int rs, int rt) { this.rd = rd; this.rs = rs; this.rt = rt; }
+        void run(int[] r, Memory m) { r[rd] = r[rs] & r[rt]; }
+    }
+
+    static final class Or extends Op {
+        final int rd, rs, rt;
+        Or(int rd, int rs, int rt) { this.rd = rd; this.rs = rs; this.rt = rt; }
+        void run(int[] r, Memory m) { r[rd] = r[rs] | r[rt]; }
+    }
+
+    static final class Slt extends Op {
+        final int rd, rs, rt;
+        Slt(int rd, int rs, int rt) { this.rd = rd; this.rs = rs; this.rt = rt; }
+        void run(int[] r, Memory m) { r[rd] = r[rs] < r[rt] ? 1 : 0; }
+    }
+
+    static final class Sll extends Op {
+        final int rd, rs, shamt;
+        Sll(int rd, int rs, int shamt) { this.rd = rd; this.rs = rs; this.shamt = shamt; }
+        void run(int[] r, Memory m) { r[rd] = r[rs] << shamt; }
+    }
+
+    static final class Lw extends Op {
+        final int rt, rs, offset;
+        Lw(int rt, int rs, int offset) { this.rt = rt; this.rs = rs; this.offset = offset; }
+        void run(int[] r, Memory m) {
+            final int value = m.loadWord(r[rs] + offset);
+            if (rt != 0)
+                r[rt] = value;
+        }
+    }
+
+    static final class Sw extends Op {
+        final int rt, rs, offset;
+        Sw(int rt, int rs, int offset) { this.rt = rt; this.rs = rs; this.offset = offset; }
+        void run(int[] r, Memory m) { m.storeWord(r[rs] + offset, r[rt]); }
+    }
+
+    static final class Addi extends Op {
+        final int rt, rs, immediate;
+        Addi(int rt, int rs, int immediate) { this.rt = rt; this.rs = rs; this.immediate = immediate; }
+        void run(int[] r, Memory m) { r[rt] = r[rs] + immediate; }
+    }
+
+    static final class Andi extends Op {
+        final int rt, rs, immediate;
+        Andi(int rt, int rs, int immediate) { this.rt = rt; this.rs = rs; this.immediate = immediate; }
+        void run(int[] r, Memory m) { r[rt] = r[rs] & immediate; }
+    }
+
+    static final class Ori extends Op {
+        final int rt, rs, immediate;
+        Ori(int rt, int rs, int immediate) { this.rt = rt; this.rs = rs; this.immediate = immediate; }
+        void run(int[] r, Memory m) { r[rt] = r[rs] | immediate; }
+    }
+
+    static final class Slti extends Op {
+        final int rt, rs, immediate;
+        Slti(int rt, int rs, int immediate) { this.rt = rt; this.rs = rs; this.immediate = immediate; }
+        void run(int[] r, Memory m) { r[rt] = r[rs] < immediate ? 1 : 0; }
+    }
+
+    static final class Set extends Op {
+        final int rd, value;
+        Set(int rd, int value) { this.rd = rd; this.value = value; }
+        void run(int[] r, Memory m) { r[rd] = value; }
+    }
+
+    // How a block is left
+    static final int FALL = 0;
+    static final int BEQ = 1;
+    static final int BNE = 2;
+    static final int J = 3;
+    static final int JR = 4;
+
+    static final class Block {
+        final int start;
+        final Op[] ops;
+        final int[] opPCs; // program counter of every op, for faults
+        final int length; // instructions including the terminator
+        int exit;
+        int rs, rt;
+        int target;
+        Block taken;
+        Block next;
+        int hits;
+        JitCompiler.CompiledBlock compiled;
+        // Metrics kind of every instruction and the number of LW/SW
+        int[] kinds;
+        int reads;
+        int writes;
+
+        Block(int start, Op[] ops, int[] opPCs, int length) {
+            this.start = start;
+            this.ops = ops;
+            this.opPCs = opPCs;
+            this.length = length;
+        }
+    }
+
+    private final Machine machine;
+    private final Program program;
+    private final Block[] blocks;
+    private final JitCompiler jit; // null when blocks stay threaded code
+
+    BlockEngine(Machine machine, boolean translate) {
+        this.machine = machine;
+        this.program = machine.getProgram();
+        this.blocks = new Block[program.length()];
+        this.jit = translate ? new JitCompiler(program) : null;
+    }
+
+    // Returns null outside of the program
+    Block blockAt(int pc) {
+        if (pc < 0 || pc >= blocks.length)
+            return null;
+        Block block = blocks[pc];
+        if (block == null) {
+            block = compile(pc);
+            blocks[pc] = block;
+        }
+        return block;
+    }
+
+    // Blocks end at the first control transfer
+    static boolean isTerminator(Program p, int i) {
+        final int opcode = p.opcode[i];
+        return opcode == 2 || opcode == 4 || opcode == 5 || (opcode == 0 && p.funct[i] == 8);
+    }
+
+    private Block compile(int start) {
+        final Program p = program;
+        int end = start;
+        while (end < p.length() && !isTerminator(p, end))
+            ++end;
+        final boolean terminated = end < p.length();
+        Op[] ops = new Op[end - start];
+        int[] opPCs = new int[end - start];
+        int count = 0;
+        for (int i = start; i < end; ++i) {
+            Op op = bind(p, i);
+            if (op != null) {
+                ops[count] = op;
+                opPCs[count] = i;
+                ++count;
+            }
+        }
+        if (count != ops.length) {
+            ops = Arrays.copyOf(ops, count);
+            opPCs = Arrays.copyOf(opPCs, count);
+        }
+        Block block = new Block(start, ops, opPCs, end - start + (terminated ? 1 : 0));
+        block.kinds = new int[block.length];
+        for (int i = 0; i < block.length; ++i) {
+            final int opcode = p.opcode[start + i];
+            block.kinds[i] = Metrics.kind(opcode, p.funct[start + i]);
+            if (opcode == 35)
+                ++block.reads;
+            else if (opcode == 43)
+                ++block.writes;
+        }
+        block.exit = FALL;
+        block.target = end + (terminated ? 1 : 0);
+        if (terminated) {
+            block.rs = p.rs[end];
+            block.rt = p.rt[end];
+            switch (p.opcode[end]) {
+            case 0:
+                block.exit = JR;
+                break;
+            case 2:
+                block.exit = J;
+                block.target = p.target[end];
+                break;
+            case 4:
+                block.exit = BEQ;
+                block.target = p.immediate[end] & 0xFFFF;
+                break;
+            case 5:
+                block.exit = BNE;
+                block.target = p.immediate[end] & 0xFFFF;
+                break;
+            }
+        }
+        return block;
+    }
+
+    // Returns null for instructions without an effect
+    private static Op bind(Program p, int i) {
+        final int rs = p.rs[i];
+        final int rt = p.rt[i];
+        final int immediate = p.immediate[i];
+        switch (p.opcode[i]) {
+        case 0: {
+            final int rd = p.rd[i];
+            if (rd == 0)
+                return null;
+            switch (p.funct[i]) {
+            case 32:
+                return new Add(rd, rs, rt);
+            case 34:
+                return new Sub(rd, rs, rt);
+            case 36:
+                return new And(rd, rs, rt);
+            case 37:
+                return new Or(rd, rs, rt);
+            case 42:
+                return new Slt(rd, rs, rt);
+            case 0:
+                return new Sll(rd, rs, p.shamt[i]);
+            }
+            return null;
+        }
+        case 35:
+            return new Lw(rt, rs, immediate);
+        case 43:
+            return new Sw(rt, rs, immediate);
+        }
+        // Remaining instructions write rt, or rs for LUI
+        if (p.opcode[i] == 15)
+            return rs == 0 ? null : new Set(rs, immediate << 16);
+        if (rt == 0)
+            return null;
+        switch (p.opcode[i]) {
+        case 8:
+            return new Addi(rt, rs, immediate);
+        case 12:
+            return new Andi(rt, rs, immediate);
+        case 13:
+            return new Ori(rt, rs, immediate);
+        case 10:
+            return new Slti(rt, rs, immediate);
+        }
+        return null;
+    }
+
+    /*
+     * Runs whole blocks until the program ends or at least maxSteps
+     * instructions were executed
+     * Returns the number of executed instructions
+     */
+    long run(long maxSteps) {
+        final int[] r = machine.registers;
+        final Memory m = machine.memory;
+        final Metrics metrics = machine.getMetrics();
+        final Profiler profiler = machine.getProfiler();
+        int pc = machine.getPC();
+        Block block = blockAt(pc);
+        long n = 0;
+        while (block != null && n < maxSteps) {
+            final Op[] ops = block.ops;
+            final JitCompiler.CompiledBlock compiled = block.compiled;
+            int k = 0;
+            try {
+                if (compiled != null) {
+                    compiled.run(r, m);
+                } else {
+                    for (; k < ops.length; ++k)
+                        ops[k].run(r, m);
+                    if (jit != null && ++block.hits == JitCompiler.HOT_THRESHOLD && !jit.compile(block)
+                            && metrics != null)
+                        ++metrics.jitFallbacks;
+                }
+            } catch (RuntimeException e) {
+                // Leave the machine on the faulting instruction
+                final int at = compiled != null ? compiled.faultPC : block.opPCs[k];
+                n += at - block.start;
+                machine.setPC(at);
+                machine.addSteps(n);
+                throw e;
+            }
+            n += block.length;
+            final boolean taken = isTaken(block, r);
+            Block successor;
+            if (block.exit == JR) {
+                pc = r[block.rs];
+                successor = blockAt(pc);
+            } else if (taken) {
+                successor = taken(block);
+                pc = block.target;
+            } else {
+                successor = next(block);
+                pc = block.start + block.length;
+            }
+            final boolean branch = block.exit == BEQ || block.exit == BNE;
+            if (metrics != null)
+                metrics.recordBlock(block.kinds, block.reads, block.writes, branch, taken);
+            if (profiler != null)
+                profiler.recordBlock(block.start, block.length, branch, taken);
+            block = successor;
+        }
+        if (block != null)
+            pc = block.start;
+        machine.setPC(pc);
+        machine.addSteps(n);
+        return n;
+    }
+
+    private static boolean isTaken(Block block, int[] r) {
+        switch (block.exit) {
+        case BEQ:
+            return r[block.rs] == r[block.rt];
+        case BNE:
+            return r[block.rs] != r[block.rt];
+        case J:
+            return true;
+        }
+        return false;
+    }
+
+    private Block taken(Block block) {
+        Block successor = block.taken;
+        if (successor == null) {
+            successor = blockAt(block.target);
+            block.taken = successor;
+        }
+        return successor;
+    }
+
+    private Block next(Block block) {
+        Block successor = block.next;
+        if (successor == null) {
+            successor = blockAt(block.start + block.length);
+            block.next = successor;
+        }
+        return successor;
+    }
+
+}
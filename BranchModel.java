@@ -0,0 +1,210 @@
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Branch prediction traced alongside execution
+ * Every BEQ/BNE is fed to each configured predictor so they can be compared
+ * on the same run, J and JR look up their target in a direct mapped branch
+ * target buffer indexed by the low PC bits
+ * A misprediction costs penalty cycles, a BTB miss its own penalty
+ * Other instructions return right away, so the model adds little to
+ * straight-line code
+ *
+ * Text form, one item per line, # starts a comment:
+ * predictor taken|nottaken|1bit|2bit|gshare [ENTRIES] [history BITS]
+ * btb ENTRIES [penalty CYCLES]
+ * penalty CYCLES
+ * Defaults are a 2 cycle misprediction penalty and a 1 cycle BTB miss
+ */
+class BranchModel implements Machine.Tracer {
+
+    private static final byte BRANCH = 1;
+    private static final byte JUMP = 2;
+
+    final BranchPredictor[] predictors;
+    final int penalty;
+    final int btbEntries; // 0 without a BTB
+    final int btbPenalty;
+    private final int btbMask;
+    private final int[] btbTags;
+    private final int[] btbTargets;
+
+    private final byte[] kinds; // decoded from the raw words, so patched opcodes do not matter
+    private final long[] executions;
+    private final long[] takenCounts;
+    private final long[] btbMisses;
+    private long branches;
+    private long taken;
+    private long jumps;
+    private long jumpMisses;
+
+    BranchModel(BranchPredictor[] predictors, int penalty, int btbEntries, int btbPenalty, Program program) {
+        if (btbEntries != 0 && Integer.bitCount(btbEntries) != 1)
+            throw new IllegalArgumentException("btb: entries must be a power of two");
+        this.predictors = predictors;
+        this.penalty = penalty;
+        this.btbEntries = btbEntries;
+        this.btbPenalty = btbPenalty;
+        this.btbMask = btbEntries - 1;
+        this.btbTags = new int[btbEntries];
+        this.btbTargets = new int[btbEntries];
+        final int n = program.length();
+        kinds = new byte[n];
+        for (int pc = 0; pc < n; ++pc) {
+            final int word = program.words[pc];
+            final int opcode = word >>> 26;
+            if (opcode == 4 || opcode == 5)
+                kinds[pc] = BRANCH;
+            else if (opcode == 2 || (opcode == 0 && (word & 0x3F) == 8))
+                kinds[pc] = JUMP;
+        }
+        executions = new long[n];
+        takenCounts = new long[n];
+        btbMisses = new long[n];
+        reset();
+    }
+
+    @Override
+    public void trace(int pc, int opcode, int address, boolean taken, int next) {
+        final byte kind = kinds[pc];
+        if (kind == 0)
+            return;
+        ++executions[pc];
+        if (kind == BRANCH) {
+            ++branches;
+            if (taken) {
+                ++this.taken;
+                ++takenCounts[pc];
+            }
+            for (BranchPredictor predictor : predictors)
+                predictor.record(pc, taken);
+        } else {
+            ++jumps;
+            if (btbEntries == 0)
+                return;
+            final int i = pc & btbMask;
+            if (btbTags[i] != pc || btbTargets[i] != next) {
+                btbTags[i] = pc;
+                btbTargets[i] = next;
+                ++btbMisses[pc];
+                ++jumpMisses;
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (BranchPredictor predictor : predictors)
+            predictor.reset();
+        // No instruction has a negative PC, so -1 marks an empty entry
+        Arrays.fill(btbTags, -1);
+        Arrays.fill(executions, 0);
+        Arrays.fill(takenCounts, 0);
+        Arrays.fill(btbMisses, 0);
+        branches = taken = jumps = jumpMisses = 0;
+    }
+
+    /*
+     * Builds the predictors from their text form
+     * Throws IllegalArgumentException listing every bad line
+     */
+    static BranchModel parse(String text, Program program) {
+        BranchPredictor[] predictors = new BranchPredictor[0];
+        int penalty = 2;
+        int btbEntries = 0;
+        int btbPenalty = 1;
+        StringBuilder errors = new StringBuilder();
+        String[] lines = text.split("\n");
+        for (int i = 0; i < lines.length; ++i) {
+            String line = lines[i];
+            final int comment = line.indexOf('#');
+            if (comment >= 0)
+                line = line.substring(0, comment);
+            final String[] words = line.trim().toLowerCase().split("\\s+");
+            try {
+                switch (words[0]) {
+                case "":
+                    break;
+                case "predictor":
+                    predictors = Arrays.copyOf(predictors, predictors.length + 1);
+                    predictors[predictors.length - 1] = BranchPredictor.parse(words, 1, program.length());
+                    break;
+                case "btb":
+                    btbEntries = Integer.parseInt(words[1]);
+                    if (words.length == 4 && words[2].equals("penalty"))
+                        btbPenalty = Integer.parseInt(words[3]);
+                    else if (words.length != 2)
+                        throw new IllegalArgumentException("expected btb ENTRIES [penalty CYCLES]");
+                    if (Integer.bitCount(btbEntries) != 1)
+                        throw new IllegalArgumentException("btb: entries must be a power of two");
+                    break;
+                case "penalty":
+                    penalty = Integer.parseInt(words[1]);
+                    break;
+                default:
+                    errors.append("Line ").append(i + 1).append(": unknown item ").append(words[0]).append('\n');
+                }
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                errors.append("Line ").append(i + 1).append(": expected a number after ").append(words[0]).append('\n');
+            } catch (IllegalArgumentException e) {
+                errors.append("Line ").append(i + 1).append(": ").append(e.getMessage()).append('\n');
+            }
+        }
+        if (errors.length() > 0)
+            throw new IllegalArgumentException(errors.toString().trim());
+        return new BranchModel(predictors, penalty, btbEntries, btbPenalty, program);
+    }
+
+    // Accuracy and cost of every predictor, the BTB and the branch sites mispredicted most
+    String report(ObjectFile map, List<String> source, int top) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Branch prediction, %d branches, %.2f%% taken, %d cycle misprediction penalty%n",
+                branches, branches == 0 ? 0 : taken * 100.0 / branches, penalty));
+        for (BranchPredictor predictor : predictors) {
+            sb.append(String.format("  %-36s %7.2f%% accuracy %12d mispredictions %14d cycles%n",
+                    predictor.describe(), predictor.accuracy(), predictor.mispredictions,
+                    predictor.mispredictions * penalty));
+        }
+        if (btbEntries > 0) {
+            sb.append(String.format("  BTB %d entries, %d jumps, %.2f%% hits, %d misses, %d cycles%n", btbEntries,
+                    jumps, jumps == 0 ? 0 : (jumps - jumpMisses) * 100.0 / jumps, jumpMisses,
+                    jumpMisses * btbPenalty));
+        }
+
+        Integer[] sites = new Integer[executions.length];
+        final long[] missed = new long[executions.length];
+        int count = 0;
+        for (int pc = 0; pc < executions.length; ++pc) {
+            if (executions[pc] == 0)
+                continue;
+            for (BranchPredictor predictor : predictors)
+                missed[pc] += predictor.siteMispredictions[pc];
+            missed[pc] += btbMisses[pc];
+            if (missed[pc] > 0)
+                sites[count++] = pc;
+        }
+        sites = Arrays.copyOf(sites, count);
+        Arrays.sort(sites, (a, b) -> Long.compare(missed[b], missed[a]));
+        sb.append(String.format("%nBranch sites with the most mispredictions%n"));
+        sb.append(String.format("  %6s %6s %12s %7s", "pc", "line", "executed", "%taken"));
+        for (BranchPredictor predictor : predictors)
+            sb.append(String.format(" %9s", BranchPredictor.name(predictor.kind)));
+        if (btbEntries > 0)
+            sb.append(String.format(" %9s", "btb"));
+        sb.append(String.format("%n"));
+        for (int i = 0; i < Math.min(top, sites.length); ++i) {
+            final int pc = sites[i];
+            final int line = map == null ? pc + 1 : map.lineOf(pc);
+            sb.append(String.format("  %6d %6d %12d %7s", pc, line, executions[pc], kinds[pc] == JUMP ? "jump"
+                    : String.format("%.1f%%", takenCounts[pc] * 100.0 / executions[pc])));
+            for (BranchPredictor predictor : predictors)
+                sb.append(String.format(" %9d", predictor.siteMispredictions[pc]));
+            if (btbEntries > 0)
+                sb.append(String.format(" %9d", btbMisses[pc]));
+            sb.append(String.format("  %s%n",
+                    source != null && line >= 1 && line <= source.size() ? source.get(line - 1).trim() : ""));
+        }
+        return sb.toString();
+    }
+
+}
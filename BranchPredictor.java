@@ -0,0 +1,161 @@
+import java.util.Arrays;
+
+/*
+ * One conditional branch direction predictor
+ * Static predictors keep no state, the dynamic ones index a table of
+ * counters with the low bits of the PC, or for gshare the PC xor the
+ * global history of branch outcomes
+ * Counters are single bytes: the last outcome for 1-bit, a saturating
+ * count 0-3 for 2-bit and gshare that predicts taken from 2 up
+ * Mispredictions are counted per instruction for the per site report
+ *
+ * Text form: taken|nottaken|1bit|2bit|gshare [ENTRIES] [history BITS]
+ * Entries default to 1024, gshare history to log2 of the entries
+ */
+class BranchPredictor {
+
+    enum Kind {
+        TAKEN, NOT_TAKEN, ONE_BIT, TWO_BIT, GSHARE
+    }
+
+    final Kind kind;
+    final int entries;
+    final int historyBits;
+    private final int mask;
+    private final int historyMask;
+    private final byte[] counters;
+    private int history;
+
+    long predictions;
+    long mispredictions;
+    final long[] siteMispredictions;
+
+    BranchPredictor(Kind kind, int entries, int historyBits, int programLength) {
+        if (Integer.bitCount(entries) != 1)
+            throw new IllegalArgumentException(name(kind) + ": entries must be a power of two");
+        if (historyBits < 0 || historyBits > 30)
+            throw new IllegalArgumentException(name(kind) + ": history must be 0 to 30 bits");
+        this.kind = kind;
+        this.entries = entries;
+        this.historyBits = historyBits;
+        this.mask = entries - 1;
+        this.historyMask = (1 << historyBits) - 1;
+        this.counters = kind == Kind.TAKEN || kind == Kind.NOT_TAKEN ? new byte[0] : new byte[entries];
+        this.siteMispredictions = new long[programLength];
+        reset();
+    }
+
+    void reset() {
+        // Counters start weakly not taken
+        Arrays.fill(counters, (byte) (kind == Kind.ONE_BIT ? 0 : 1));
+        history = 0;
+        predictions = mispredictions = 0;
+        Arrays.fill(siteMispredictions, 0);
+    }
+
+    /*
+     * Predicts the branch at pc, then trains on the real outcome
+     * Returns whether the prediction was right
+     */
+    boolean record(int pc, boolean taken) {
+        final boolean predicted;
+        switch (kind) {
+        case TAKEN:
+            predicted = true;
+            break;
+        case NOT_TAKEN:
+            predicted = false;
+            break;
+        case ONE_BIT: {
+            final int i = pc & mask;
+            predicted = counters[i] != 0;
+            counters[i] = (byte) (taken ? 1 : 0);
+            break;
+        }
+        default: {
+            final int i = (kind == Kind.GSHARE ? pc ^ history : pc) & mask;
+            final int counter = counters[i];
+            predicted = counter >= 2;
+            if (taken) {
+                if (counter < 3)
+                    counters[i] = (byte) (counter + 1);
+            } else if (counter > 0) {
+                counters[i] = (byte) (counter - 1);
+            }
+            history = (history << 1 | (taken ? 1 : 0)) & historyMask;
+            break;
+        }
+        }
+        ++predictions;
+        if (predicted == taken)
+            return true;
+        ++mispredictions;
+        ++siteMispredictions[pc];
+        return false;
+    }
+
+    double accuracy() {
+        return predictions == 0 ? 0 : (predictions - mispredictions) * 100.0 / predictions;
+    }
+
+    String describe() {
+        switch (kind) {
+        case TAKEN:
+        case NOT_TAKEN:
+            return name(kind);
+        case GSHARE:
+            return String.format("%s %d entries, %d history bits", name(kind), entries, historyBits);
+        default:
+            return String.format("%s %d entries", name(kind), entries);
+        }
+    }
+
+    static String name(Kind kind) {
+        switch (kind) {
+        case TAKEN:
+            return "taken";
+        case NOT_TAKEN:
+            return "nottaken";
+        case ONE_BIT:
+            return "1bit";
+        case TWO_BIT:
+            return "2bit";
+        default:
+            return "gshare";
+        }
+    }
+
+    /*
+     * Builds a predictor from the words of its text form
+     * Throws IllegalArgumentException on bad options
+     */
+    static BranchPredictor parse(String[] words, int from, int programLength) {
+        if (from >= words.length)
+            throw new IllegalArgumentException("expected taken|nottaken|1bit|2bit|gshare");
+        Kind kind = null;
+        for (Kind k : Kind.values()) {
+            if (name(k).equals(words[from]))
+                kind = k;
+        }
+        if (kind == null)
+            throw new IllegalArgumentException("unknown predictor " + words[from]);
+        int entries = 1024;
+        int history = -1;
+        for (int i = from + 1; i < words.length; ++i) {
+            if (words[i].equals("history")) {
+                if (i + 1 == words.length)
+                    throw new IllegalArgumentException(name(kind) + ": expected history BITS");
+                history = Integer.parseInt(words[++i]);
+            } else if (i == from + 1) {
+                entries = words[i].endsWith("k") ? Integer.parseInt(words[i].substring(0, words[i].length() - 1)) << 10
+                        : Integer.parseInt(words[i]);
+            } else {
+                throw new IllegalArgumentException(name(kind) + ": unknown option " + words[i]);
+            }
+        }
+        if (history < 0)
+            history = kind == Kind.GSHARE ? Integer.numberOfTrailingZeros(entries) : 0;
+        return new BranchPredictor(kind, entries, history, programLength);
+    }
+
+}
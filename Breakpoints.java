@@ -0,0 +1,226 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * PC breakpoints, conditional breakpoints and watchpoints
+ * A breakpoint patches the decoded opcode of its instruction to TRAP, a
+ * value no 6-bit opcode can take, so instructions without one are not
+ * looked at
+ * Memory watchpoints flag their page in Memory, only LW/SW on flagged
+ * pages leave the fast path. Register watchpoints compare the watched
+ * registers after every instruction
+ * Breakpoints stop before their instruction, watchpoints after the access
+ *
+ * Text form, one per line, # starts a comment:
+ * PC or LABEL [if $REG OP VALUE]   OP is == != < <= > >=, VALUE a number or register
+ * watch ADDRESS | rwatch ADDRESS   stop after a store to / a load from the word
+ * watch $REG                       stop when the register changes
+ */
+class Breakpoints implements Memory.Watcher {
+
+    static final byte TRAP = -1;
+
+    static final class Condition {
+        final int register;
+        final String op;
+        final int value;
+        final int valueRegister; // -1 when value is a constant
+
+        Condition(int register, String op, int value, int valueRegister) {
+            this.register = register;
+            this.op = op;
+            this.value = value;
+            this.valueRegister = valueRegister;
+        }
+
+        boolean test(Machine machine) {
+            final int left = machine.getRegister(register);
+            final int right = valueRegister < 0 ? value : machine.getRegister(valueRegister);
+            switch (op) {
+            case "==":
+                return left == right;
+            case "!=":
+                return left != right;
+            case "<":
+                return left < right;
+            case "<=":
+                return left <= right;
+            case ">":
+                return left > right;
+            default:
+                return left >= right;
+            }
+        }
+    }
+
+    private final Program program;
+    private final Memory memory;
+    private final byte[] original;
+    // Condition of every breakpoint, null for an unconditional one
+    private final Map<Integer, Condition> breakpoints = new HashMap<>();
+    private final Map<Integer, Boolean> watchedWords = new HashMap<>(); // address to true for loads
+    private int[] watchedRegisters = new int[0];
+    private int[] lastValues = new int[0];
+    private long resumeStep = -1;
+    private String hit;
+
+    Breakpoints(Program program, Memory memory) {
+        this.program = program;
+        this.memory = memory;
+        this.original = program.opcode.clone();
+    }
+
+    // Undecoded opcode of an instruction, also for patched ones
+    int original(int pc) {
+        return original[pc];
+    }
+
+    void addBreakpoint(int pc, Condition condition) {
+        if (pc < 0 || pc >= program.length())
+            throw new IllegalArgumentException("PC " + pc + " is outside of the program");
+        breakpoints.put(pc, condition);
+        program.opcode[pc] = TRAP;
+    }
+
+    void watchWord(int address, boolean loads) {
+        if ((address & 3) != 0)
+            throw new IllegalArgumentException("Unaligned watch address 0x" + Integer.toHexString(address));
+        watchedWords.put(address, loads);
+        memory.watchPage(address >>> Memory.PAGE_BITS, this);
+    }
+
+    void watchRegister(int n, Machine machine) {
+        final int count = watchedRegisters.length;
+        watchedRegisters = Arrays.copyOf(watchedRegisters, count + 1);
+        lastValues = Arrays.copyOf(lastValues, count + 1);
+        watchedRegisters[count] = n;
+        lastValues[count] = machine.getRegister(n);
+    }
+
+    // Restores the program and memory, the object is unusable afterwards
+    void clear() {
+        for (int pc : breakpoints.keySet())
+            program.opcode[pc] = original[pc];
+        breakpoints.clear();
+        watchedWords.clear();
+        memory.unwatchPages();
+        watchedRegisters = new int[0];
+        lastValues = new int[0];
+    }
+
+    boolean isEmpty() {
+        return breakpoints.isEmpty() && watchedWords.isEmpty() && watchedRegisters.length == 0;
+    }
+
+    // Lets the next instruction run even if a breakpoint sits on it
+    void resume(Machine machine) {
+        resumeStep = machine.getSteps();
+        for (int i = 0; i < watchedRegisters.length; ++i)
+            lastValues[i] = machine.getRegister(watchedRegisters[i]);
+    }
+
+    // Why the machine last stopped, null if it did not
+    String takeHit() {
+        final String out = hit;
+        hit = null;
+        return out;
+    }
+
+    // Called by the interpreter for a TRAP, returns true to stop before the instruction
+    boolean trap(Machine machine, int pc) {
+        if (machine.getSteps() == resumeStep)
+            return false;
+        final Condition condition = breakpoints.get(pc);
+        if (condition != null && !condition.test(machine))
+            return false;
+        resumeStep = machine.getSteps();
+        hit = "Breakpoint at PC " + pc;
+        return true;
+    }
+
+    // Called by the interpreter after every instruction, returns true to stop
+    boolean afterStep(Machine machine) {
+        for (int i = 0; i < watchedRegisters.length; ++i) {
+            final int value = machine.getRegister(watchedRegisters[i]);
+            if (value != lastValues[i]) {
+                hit = "Watchpoint " + Machine.getRegisterName(watchedRegisters[i]) + ": " + lastValues[i] + " -> "
+                        + value;
+                lastValues[i] = value;
+            }
+        }
+        return hit != null;
+    }
+
+    @Override
+    public void accessed(int address, boolean store, int value) {
+        final Boolean loads = watchedWords.get(address);
+        if (loads != null && loads != store)
+            hit = "Watchpoint 0x" + Integer.toHexString(address) + (store ? " written " : " read ") + value;
+    }
+
+    /*
+     * Replaces everything with the text form
+     * Labels are resolved through the symbols of the object file when there is one
+     */
+    void parse(String text, ObjectFile map, Machine machine) {
+        clear();
+        List<String> errors = new ArrayList<>();
+        String[] lines = text.split("\n");
+        for (int i = 0; i < lines.length; ++i) {
+            String line = lines[i];
+            final int comment = line.indexOf('#');
+            if (comment >= 0)
+                line = line.substring(0, comment);
+            final String[] words = line.trim().split("\\s+");
+            if (words[0].isEmpty())
+                continue;
+            try {
+                if (words[0].equals("watch") || words[0].equals("rwatch")) {
+                    if (words.length != 2)
+                        throw new IllegalArgumentException("expected " + words[0] + " ADDRESS");
+                    if (words[1].startsWith("$") && words[0].equals("watch"))
+                        watchRegister(register(words[1]), machine);
+                    else
+                        watchWord(Long.decode(words[1]).intValue(), words[0].equals("rwatch"));
+                } else {
+                    Condition condition = null;
+                    if (words.length == 5 && words[1].equals("if")) {
+                        final boolean isRegister = words[4].startsWith("$");
+                        if (!words[3].matches("==|!=|<|<=|>|>="))
+                            throw new IllegalArgumentException("unknown comparison " + words[3]);
+                        condition = new Condition(register(words[2]), words[3],
+                                isRegister ? 0 : Integer.decode(words[4]), isRegister ? register(words[4]) : -1);
+                    } else if (words.length != 1) {
+                        throw new IllegalArgumentException("expected PC [if $REG OP VALUE]");
+                    }
+                    addBreakpoint(location(words[0], map), condition);
+                }
+            } catch (IllegalArgumentException e) {
+                errors.add("Line " + (i + 1) + ": " + e.getMessage());
+            }
+        }
+        if (!errors.isEmpty())
+            throw new IllegalArgumentException(String.join("\n", errors));
+    }
+
+    private static int register(String name) {
+        final int n = name.startsWith("$") ? Assembler.getRegisterNumber(name.substring(1)) : -1;
+        if (n < 0)
+            throw new IllegalArgumentException("unknown register " + name);
+        return n;
+    }
+
+    private static int location(String word, ObjectFile map) {
+        if (map != null && map.section(word) == ObjectFile.TEXT)
+            return map.symbol(word);
+        try {
+            return Integer.decode(word);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("unknown label " + word);
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+import java.util.Arrays;
+
+/*
+ * One set associative cache level
+ * Tags, valid and dirty bits and replacement stamps live in flat primitive
+ * arrays indexed by set * ways + way, an access is a short scan of one set
+ * Repeated accesses to the block used last, the common case for
+ * instruction fetch, skip the scan since only this cache can evict it
+ * Misses and write-backs go to the next level, or cost memoryLatency when
+ * there is none
+ */
+class Cache {
+
+    enum Replacement {
+        LRU, FIFO, RANDOM
+    }
+
+    final String name;
+    final int size;
+    final int ways;
+    final int blockSize;
+    final Replacement replacement;
+    final boolean writeBack; // otherwise write-through
+    final boolean writeAllocate;
+    final int hitLatency;
+    private final Cache next;
+    private final int memoryLatency;
+
+    private final int offsetBits;
+    private final int setMask;
+    private final int tagShift;
+    private final int[] tags;
+    private final boolean[] valid;
+    private final boolean[] dirty;
+    private final long[] stamps; // last use for LRU, fill time for FIFO
+    private long clock;
+    private int random = 0x9E3779B9;
+    private int lastBlock = -1; // address >>> offset bits, never -1 for a real block
+    private int lastIndex;
+
+    long reads;
+    long writes;
+    long readMisses;
+    long writeMisses;
+    long writeBacks;
+    boolean lastMiss; // whether the latest access missed
+
+    Cache(String name, int size, int ways, int blockSize, Replacement replacement, boolean writeBack,
+            boolean writeAllocate, int hitLatency, Cache next, int memoryLatency) {
+        if (Integer.bitCount(blockSize) != 1 || blockSize < 4)
+            throw new IllegalArgumentException(name + ": block size must be a power of two of at least 4");
+        if (ways < 1 || size % (blockSize * ways) != 0 || Integer.bitCount(size / (blockSize * ways)) != 1)
+            throw new IllegalArgumentException(name + ": size / (block size * ways) must be a power of two");
+        this.name = name;
+        this.size = size;
+        this.ways = ways;
+        this.blockSize = blockSize;
+        this.replacement = replacement;
+        this.writeBack = writeBack;
+        this.writeAllocate = writeAllocate;
+        this.hitLatency = hitLatency;
+        this.next = next;
+        this.memoryLatency = memoryLatency;
+        final int sets = size / (blockSize * ways);
+        this.offsetBits = Integer.numberOfTrailingZeros(blockSize);
+        this.setMask = sets - 1;
+        this.tagShift = offsetBits + Integer.numberOfTrailingZeros(sets);
+        this.tags = new int[sets * ways];
+        this.valid = new boolean[sets * ways];
+        this.dirty = new boolean[sets * ways];
+        this.stamps = new long[sets * ways];
+    }
+
+    void reset() {
+        Arrays.fill(valid, false);
+        Arrays.fill(dirty, false);
+        clock = 0;
+        lastBlock = -1;
+        reads = writes = readMisses = writeMisses = writeBacks = 0;
+        lastMiss = false;
+    }
+
+    // Returns the cycles the access takes including lower levels
+    int access(int address, boolean write) {
+        // Kept small so the common case inlines into the caller
+        if (!write && address >>> offsetBits == lastBlock) {
+            ++reads;
+            lastMiss = false;
+            return hitLatency;
+        }
+        return lookup(address, write);
+    }
+
+    private int lookup(int address, boolean write) {
+        final int block = address >>> offsetBits;
+        if (write)
+            ++writes;
+        else
+            ++reads;
+        if (block == lastBlock) {
+            lastMiss = false;
+            if (writeBack) {
+                dirty[lastIndex] = true;
+                return hitLatency;
+            }
+            return hitLatency + below(address, true);
+        }
+        final int base = (block & setMask) * ways;
+        final int tag = address >>> tagShift;
+        for (int i = base; i < base + ways; ++i) {
+            if (valid[i] && tags[i] == tag) {
+                lastMiss = false;
+                lastBlock = block;
+                lastIndex = i;
+                if (replacement == Replacement.LRU)
+                    stamps[i] = ++clock;
+                if (!write)
+                    return hitLatency;
+                if (writeBack) {
+                    dirty[i] = true;
+                    return hitLatency;
+                }
+                return hitLatency + below(address, true);
+            }
+        }
+        lastMiss = true;
+        if (write)
+            ++writeMisses;
+        else
+            ++readMisses;
+        if (write && !writeAllocate)
+            return hitLatency + below(address, true);
+        final int victim = victim(base);
+        int cycles = hitLatency;
+        if (valid[victim] && dirty[victim]) {
+            ++writeBacks;
+            final int set = (victim / ways) << offsetBits;
+            cycles += below(tags[victim] << tagShift | set, true);
+        }
+        cycles += below(address, false);
+        tags[victim] = tag;
+        valid[victim] = true;
+        dirty[victim] = write && writeBack;
+        stamps[victim] = ++clock;
+        lastBlock = block;
+        lastIndex = victim;
+        if (write && !writeBack)
+            cycles += below(address, true);
+        return cycles;
+    }
+
+    private int below(int address, boolean write) {
+        return next == null ? memoryLatency : next.access(address, write);
+    }
+
+    private int victim(int base) {
+        for (int i = base; i < base + ways; ++i) {
+            if (!valid[i])
+                return i;
+        }
+        if (replacement == Replacement.RANDOM) {
+            random ^= random << 13;
+            random ^= random >>> 17;
+            random ^= random << 5;
+            return base + Integer.remainderUnsigned(random, ways);
+        }
+        int oldest = base;
+        for (int i = base + 1; i < base + ways; ++i) {
+            if (stamps[i] < stamps[oldest])
+                oldest = i;
+        }
+        return oldest;
+    }
+
+    long accesses() {
+        return reads + writes;
+    }
+
+    long misses() {
+        return readMisses + writeMisses;
+    }
+
+    String describe() {
+        return String.format("%s %d B, %d-way, %d B blocks, %s, %s%s, hit %d cycles", name, size, ways, blockSize,
+                replacement, writeBack ? "write-back" : "write-through",
+                writeAllocate ? " write-allocate" : " no-write-allocate", hitLatency);
+    }
+
+}
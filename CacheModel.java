@@ -0,0 +1,234 @@
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Instruction and data cache hierarchy traced alongside execution
+ * Every instruction is fetched through L1I and every LW/SW goes through
+ * L1D, both optionally backed by a shared L2 and then main memory
+ * Counts are kept per run and per instruction, the report folds them into
+ * source lines
+ *
+ * Text form, one level per line, # starts a comment:
+ * l1i|l1d|l2 SIZE WAYS BLOCK [lru|fifo|random] [wb|wt] [alloc|noalloc] [hit CYCLES]
+ * memory CYCLES
+ * Sizes take a K or M suffix, defaults are LRU, write-back, write-allocate,
+ * 1 cycle L1 hits, 10 cycle L2 hits and 100 cycle memory
+ */
+class CacheModel implements Machine.Tracer {
+
+    final Cache l1i; // null when fetches are not modeled
+    final Cache l1d;
+    final Cache l2;
+    final int memoryLatency;
+    private final Cache fetchPath; // first level seen by fetches and data, may be l2
+    private final Cache dataPath;
+
+    private final long[] fetchMisses;
+    private final long[] dataAccesses;
+    private final long[] dataMisses;
+    private final long[] cycles;
+    private long totalCycles;
+    private long instructions;
+
+    CacheModel(Cache l1i, Cache l1d, Cache l2, int memoryLatency, int programLength) {
+        this.l1i = l1i;
+        this.l1d = l1d;
+        this.l2 = l2;
+        this.memoryLatency = memoryLatency;
+        this.fetchPath = l1i;
+        this.dataPath = l1d != null ? l1d : l2;
+        this.fetchMisses = new long[programLength];
+        this.dataAccesses = new long[programLength];
+        this.dataMisses = new long[programLength];
+        this.cycles = new long[programLength];
+    }
+
+    @Override
+    public void trace(int pc, int opcode, int address, boolean taken, int next) {
+        int c = 0;
+        if (fetchPath != null) {
+            c += fetchPath.access(Memory.TEXT_BASE + (pc << 2), false);
+            if (fetchPath.lastMiss)
+                ++fetchMisses[pc];
+        }
+        if (opcode == 35 || opcode == 43) {
+            ++dataAccesses[pc];
+            if (dataPath == null) {
+                c += memoryLatency;
+                ++dataMisses[pc];
+            } else {
+                c += dataPath.access(address, opcode == 43);
+                if (dataPath.lastMiss)
+                    ++dataMisses[pc];
+            }
+        }
+        cycles[pc] += c;
+        totalCycles += c;
+        ++instructions;
+    }
+
+    @Override
+    public void reset() {
+        for (Cache cache : new Cache[] { l1i, l1d, l2 }) {
+            if (cache != null)
+                cache.reset();
+        }
+        Arrays.fill(fetchMisses, 0);
+        Arrays.fill(dataAccesses, 0);
+        Arrays.fill(dataMisses, 0);
+        Arrays.fill(cycles, 0);
+        totalCycles = 0;
+        instructions = 0;
+    }
+
+    long getTotalCycles() {
+        return totalCycles;
+    }
+
+    /*
+     * Builds the hierarchy from its text form
+     * Throws IllegalArgumentException listing every bad line
+     */
+    static CacheModel parse(String text, int programLength) {
+        String[] l1i = null, l1d = null, l2 = null;
+        int memory = 100;
+        StringBuilder errors = new StringBuilder();
+        String[] lines = text.split("\n");
+        for (int i = 0; i < lines.length; ++i) {
+            String line = lines[i];
+            final int comment = line.indexOf('#');
+            if (comment >= 0)
+                line = line.substring(0, comment);
+            final String[] words = line.trim().toLowerCase().split("\\s+");
+            switch (words[0]) {
+            case "":
+                break;
+            case "l1i":
+                l1i = words;
+                break;
+            case "l1d":
+                l1d = words;
+                break;
+            case "l2":
+                l2 = words;
+                break;
+            case "memory":
+                try {
+                    memory = Integer.parseInt(words[1]);
+                } catch (RuntimeException e) {
+                    errors.append("Line ").append(i + 1).append(": expected memory CYCLES\n");
+                }
+                break;
+            default:
+                errors.append("Line ").append(i + 1).append(": unknown level ").append(words[0]).append('\n');
+            }
+        }
+        if (errors.length() > 0)
+            throw new IllegalArgumentException(errors.toString().trim());
+        final Cache shared = l2 == null ? null : level(l2, 10, null, memory);
+        return new CacheModel(l1i == null ? null : level(l1i, 1, shared, memory),
+                l1d == null ? null : level(l1d, 1, shared, memory), shared, memory, programLength);
+    }
+
+    private static Cache level(String[] words, int hit, Cache next, int memory) {
+        if (words.length < 4)
+            throw new IllegalArgumentException(words[0] + ": expected SIZE WAYS BLOCK");
+        Cache.Replacement replacement = Cache.Replacement.LRU;
+        boolean writeBack = true;
+        boolean allocate = true;
+        for (int i = 4; i < words.length; ++i) {
+            switch (words[i]) {
+            case "lru":
+            case "fifo":
+            case "random":
+                replacement = Cache.Replacement.valueOf(words[i].toUpperCase());
+                break;
+            case "wb":
+                writeBack = true;
+                break;
+            case "wt":
+                writeBack = false;
+                break;
+            case "alloc":
+                allocate = true;
+                break;
+            case "noalloc":
+                allocate = false;
+                break;
+            case "hit":
+                if (i + 1 == words.length)
+                    throw new IllegalArgumentException(words[0] + ": expected hit CYCLES");
+                hit = Integer.parseInt(words[++i]);
+                break;
+            default:
+                throw new IllegalArgumentException(words[0] + ": unknown option " + words[i]);
+            }
+        }
+        return new Cache(words[0].toUpperCase(), bytes(words[1]), Integer.parseInt(words[2]), bytes(words[3]),
+                replacement, writeBack, allocate, hit, next, memory);
+    }
+
+    private static int bytes(String size) {
+        if (size.endsWith("k"))
+            return Integer.parseInt(size.substring(0, size.length() - 1)) << 10;
+        if (size.endsWith("m"))
+            return Integer.parseInt(size.substring(0, size.length() - 1)) << 20;
+        return Integer.parseInt(size);
+    }
+
+    // Per level counts and the source lines with the most misses
+    String report(ObjectFile map, List<String> source, int top) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Caches, memory %d cycles%n", memoryLatency));
+        for (Cache cache : new Cache[] { l1i, l1d, l2 }) {
+            if (cache == null)
+                continue;
+            sb.append(String.format("  %s%n", cache.describe()));
+            sb.append(String.format("    %d reads, %d writes, %d read misses, %d write misses, %.2f%% miss rate,"
+                    + " %d write-backs%n", cache.reads, cache.writes, cache.readMisses, cache.writeMisses,
+                    percent(cache.misses(), cache.accesses()), cache.writeBacks));
+        }
+        sb.append(String.format("  %d memory cycles for %d instructions, %.3f per instruction%n", totalCycles,
+                instructions, instructions == 0 ? 0 : (double) totalCycles / instructions));
+
+        int lineCount = source == null ? 0 : source.size();
+        for (int pc = 0; pc < cycles.length; ++pc)
+            lineCount = Math.max(lineCount, lineOf(map, pc));
+        final long[] lineFetchMisses = new long[lineCount + 1];
+        final long[] lineAccesses = new long[lineCount + 1];
+        final long[] lineMisses = new long[lineCount + 1];
+        final long[] lineCycles = new long[lineCount + 1];
+        for (int pc = 0; pc < cycles.length; ++pc) {
+            final int line = lineOf(map, pc);
+            lineFetchMisses[line] += fetchMisses[pc];
+            lineAccesses[line] += dataAccesses[pc];
+            lineMisses[line] += dataMisses[pc];
+            lineCycles[line] += cycles[pc];
+        }
+        Integer[] order = new Integer[lineCount + 1];
+        for (int i = 0; i < order.length; ++i)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(lineFetchMisses[b] + lineMisses[b], lineFetchMisses[a] + lineMisses[a]));
+        sb.append(String.format("%nLines with the most misses%n"));
+        sb.append(String.format("  %6s %12s %12s %12s %14s%n", "line", "fetch miss", "data access", "data miss",
+                "cycles"));
+        for (int i = 0; i < Math.min(top, order.length); ++i) {
+            final int line = order[i];
+            if (lineFetchMisses[line] + lineMisses[line] == 0)
+                break;
+            sb.append(String.format("  %6d %12d %12d %12d %14d  %s%n", line, lineFetchMisses[line],
+                    lineAccesses[line], lineMisses[line], lineCycles[line],
+                    source != null && line >= 1 && line <= source.size() ? source.get(line - 1).trim() : ""));
+        }
+        return sb.toString();
+    }
+
+    private static int lineOf(ObjectFile map, int pc) {
+        return map == null ? pc + 1 : map.lineOf(pc);
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0 : part * 100.0 / whole;
+    }
+
+}
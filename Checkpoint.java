@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Binary snapshot of the full machine state
+ * Only allocated memory pages are stored, the program itself is identified
+ * by its hash and has to be loaded before a restore
+ * Layout, big-endian:
+ * int magic, short version, long program hash, int pc, long steps,
+ * 32 x int registers, int page count,
+ * page count x (int page number, PAGE_WORDS x int)
+ */
+class Checkpoint {
+
+    static final int MAGIC = 0x4D495043; // MIPC
+    static final int VERSION = 1;
+    private static final int HEADER = 4 + 2 + 8 + 4 + 8 + Machine.REGISTER_COUNT * 4 + 4;
+    private static final int PAGE_RECORD = 4 + Memory.PAGE_WORDS * 4;
+    private static final int BUFFER = 64 * 1024;
+
+    /*
+     * Writes next to the target and moves it into place, so a crash while
+     * saving leaves the previous checkpoint intact
+     */
+    static void save(Machine machine, Path path) throws IOException {
+        final Memory memory = machine.getMemory();
+        final int[] numbers = memory.getPageNumbers();
+        final Path temporary = Paths.get(path + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+            buffer.putInt(MAGIC);
+            buffer.putShort((short) VERSION);
+            buffer.putLong(machine.getProgram().hash());
+            // Every PC outside the program halts, restore only accepts the end
+            buffer.putInt(machine.isHalted() ? machine.getProgramLength() : machine.getPC());
+            buffer.putLong(machine.getSteps());
+            for (int n = 0; n < Machine.REGISTER_COUNT; ++n)
+                buffer.putInt(machine.getRegister(n));
+            buffer.putInt(numbers.length);
+            for (int number : numbers) {
+                if (buffer.remaining() < PAGE_RECORD)
+                    flush(channel, buffer);
+                buffer.putInt(number);
+                buffer.asIntBuffer().put(memory.getPage(number));
+                buffer.position(buffer.position() + Memory.PAGE_WORDS * 4);
+            }
+            flush(channel, buffer);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    // The machine must already hold the program the checkpoint was taken from
+    static void restore(Machine machine, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < HEADER)
+                throw new IOException(path.getFileName() + " is not a checkpoint");
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(path.getFileName() + " is too large for a checkpoint");
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC)
+                throw new IOException(path.getFileName() + " is not a checkpoint");
+            final int version = buffer.getShort();
+            if (version != VERSION)
+                throw new IOException(path.getFileName() + " has unsupported checkpoint version " + version);
+            if (buffer.getLong() != machine.getProgram().hash())
+                throw new IOException(path.getFileName() + " was taken from a different program");
+            final int pc = buffer.getInt();
+            final long steps = buffer.getLong();
+            final int[] registers = new int[Machine.REGISTER_COUNT];
+            for (int n = 0; n < Machine.REGISTER_COUNT; ++n)
+                registers[n] = buffer.getInt();
+            final int pageCount = buffer.getInt();
+            if (pageCount < 0 || buffer.remaining() != (long) pageCount * PAGE_RECORD)
+                throw new IOException(path.getFileName() + " is truncated");
+            // Everything is checked before the live state is replaced
+            if (pc < 0 || pc > machine.getProgramLength())
+                throw new IOException(path.getFileName() + " is damaged, pc " + pc + " is outside the program");
+            if (steps < 0)
+                throw new IOException(path.getFileName() + " is damaged, negative step count");
+            for (int i = 0; i < pageCount; ++i) {
+                final int number = buffer.getInt(HEADER + i * PAGE_RECORD);
+                if (number < 0 || number >= 1 << (32 - Memory.PAGE_BITS))
+                    throw new IOException(path.getFileName() + " is damaged, page " + number + " does not exist");
+            }
+
+            machine.reset();
+            for (int n = 0; n < Machine.REGISTER_COUNT; ++n)
+                machine.setRegister(n, registers[n]);
+            machine.setPC(pc);
+            machine.addSteps(steps);
+            final Memory memory = machine.getMemory();
+            for (int i = 0; i < pageCount; ++i) {
+                final int number = buffer.getInt();
+                IntBuffer words = buffer.asIntBuffer();
+                words.limit(Memory.PAGE_WORDS);
+                words.get(memory.allocatePage(number));
+                buffer.position(buffer.position() + Memory.PAGE_WORDS * 4);
+            }
+        }
+    }
+
+}
@@ -1,30 +1,62 @@
+import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.awt.event.MouseEvent;
 import java.io.IOException;
-import java.util.Scanner;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import javax.swing.AbstractListModel;
 import javax.swing.BoxLayout;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.plaf.basic.BasicTextAreaUI;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.Segment;
+import javax.swing.text.View;
 
 class IDE extends JFrame{
     private static final long serialVersionUID = 8291500763083492646L;
+    // Only this many error lines are highlighted, the status line still counts all
+    private static final int MAX_HIGHLIGHTS = 1000;
 
     JMenuBar menuBar;
     JTextArea code_tArea;
     String fileName;
+    JLabel status;
+    LineNumbers lineNumbers;
+    LabelListModel labelModel;
+    IncrementalAssembler assembler;
+    // Latest errors of the background assembler by line number
+    HashMap<Integer, String> errors = new HashMap<>();
+    final Highlighter.HighlightPainter errorPainter = new DefaultHighlighter.DefaultHighlightPainter(
+            new Color(255, 210, 210));
 
     IDE() {
         super("MIPS-32 IDE");
@@ -33,7 +65,29 @@ class IDE extends JFrame{
 
         // Init main GUI components
         menuBar = new JMenuBar();
-        code_tArea = new JTextArea();
+        code_tArea = new JTextArea(){
+            private static final long serialVersionUID = 1L;
+
+            // Errors show up as tooltips over their line
+            @Override
+            public String getToolTipText(MouseEvent event) {
+                final int offset = viewToModel2D(event.getPoint());
+                final int line = getDocument().getDefaultRootElement().getElementIndex(offset) + 1;
+                return errors.get(line);
+            }
+
+            // Colours the source through AssemblyView, also after a look and feel change
+            @Override
+            public void updateUI() {
+                setUI(new BasicTextAreaUI(){
+                    @Override
+                    public View create(Element element) {
+                        return new AssemblyView(element);
+                    }
+                });
+            }
+        };
+        code_tArea.setToolTipText("");
         code_tArea.setFont(new Font("Monospaced", Font.PLAIN, 16));
 
         // Add menubar items
@@ -64,26 +118,243 @@ class IDE extends JFrame{
         compile.setActionCommand("compile");
         compileMenu.add(compile);
         compile.addActionListener(listener);
+        JMenuItem buildProject = new JMenuItem("Build project");
+        buildProject.setActionCommand("build_project");
+        compileMenu.add(buildProject);
+        buildProject.addActionListener(listener);
         menuBar.add(compileMenu);
 
         this.setJMenuBar(menuBar);
-        this.add(code_tArea);
+        JPanel row = new JPanel();
+        row.setLayout(new BoxLayout(row, BoxLayout.LINE_AXIS));
+        JScrollPane codeScroll = new JScrollPane(code_tArea);
+        lineNumbers = new LineNumbers(code_tArea);
+        codeScroll.setRowHeaderView(lineNumbers);
+        row.add(codeScroll);
+        labelModel = new LabelListModel();
+        JList<String> labelList = new JList<>(labelModel);
+        labelList.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        JScrollPane labelScroll = new JScrollPane(labelList);
+        labelScroll.setPreferredSize(new Dimension(180, 0));
+        labelScroll.setMaximumSize(new Dimension(180, Integer.MAX_VALUE));
+        row.add(labelScroll);
+        this.add(row);
+        status = new JLabel(" ");
+        this.add(status);
+        assembler = new IncrementalAssembler(code_tArea.getDocument(), this::assembled);
         this.setMinimumSize(new Dimension(500, 500));
         this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         this.setVisible(true);
     }
 
-    void writeToFile(){
-        // Save text to file
+    // Label table of the background assembler, sorted by address
+    static class LabelListModel extends AbstractListModel<String>{
+        private static final long serialVersionUID = 1L;
+        private String[] names = new String[0];
+        private int[] pcs = new int[0];
+
+        void set(String[] names, int[] pcs){
+            final int old = this.names.length;
+            this.names = names;
+            this.pcs = pcs;
+            if(old > 0)
+                fireIntervalRemoved(this, 0, old - 1);
+            if(names.length > 0)
+                fireIntervalAdded(this, 0, names.length - 1);
+        }
+
+        @Override
+        public int getSize() {
+            return names.length;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return pcs[index] + "  " + names[index];
+        }
+    }
+
+    // Called on the EDT after every background assembly
+    void assembled(IncrementalAssembler.Result result){
+        errors.clear();
+        for(int i = 0; i < result.errors.length; ++i)
+            errors.put(result.errorLines[i], result.errors[i]);
+        if(result.labelNames != null)
+            labelModel.set(result.labelNames, result.labelPCs);
+        final Highlighter highlighter = code_tArea.getHighlighter();
+        for(Highlighter.Highlight highlight : highlighter.getHighlights()){
+            if(highlight.getPainter() == errorPainter)
+                highlighter.removeHighlight(highlight);
+        }
+        final Element root = code_tArea.getDocument().getDefaultRootElement();
+        for(int i = 0; i < Math.min(MAX_HIGHLIGHTS, result.errorLines.length); ++i){
+            if(result.errorLines[i] > root.getElementCount())
+                break; // The document moved on, the next result follows
+            final Element line = root.getElement(result.errorLines[i] - 1);
+            try {
+                highlighter.addHighlight(line.getStartOffset(), line.getEndOffset(), errorPainter);
+            } catch (BadLocationException e) {
+                break;
+            }
+        }
+        if(result.errors.length == 0)
+            status.setText(result.instructions + " instructions, " + labelModel.getSize() + " labels");
+        else
+            status.setText(result.errors.length + " errors, line " + result.errorLines[0] + ": " + result.errors[0]);
+    }
+
+    /*
+     * Saves the text through a temporary file moved over the old one, a
+     * failed save leaves the previous file as it was
+     * The document is written in the chunks it is stored in, never copied whole
+     * Returns false after telling the user why the save failed
+     */
+    boolean writeToFile(){
+        final Path target = Paths.get(fileName).toAbsolutePath();
+        Path temp = null;
         try {
-            FileWriter fw = new FileWriter(fileName);
-            fw.write(code_tArea.getText());
-            fw.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            temp = Files.createTempFile(target.getParent(), target.getFileName() + ".", ".tmp");
+            if(Files.exists(target)){
+                try {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+                } catch (UnsupportedOperationException e) {
+                    // Not a POSIX file system, the temporary file keeps the defaults
+                }
+            }
+            try(Writer out = Files.newBufferedWriter(temp)){
+                final Document document = code_tArea.getDocument();
+                final Segment segment = new Segment();
+                segment.setPartialReturn(true);
+                for(int offset = 0; offset < document.getLength(); offset += segment.count){
+                    document.getText(offset, document.getLength() - offset, segment);
+                    out.write(segment.array, segment.offset, segment.count);
+                }
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException | BadLocationException e) {
+            if(temp != null){
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // The save already failed, report that one
+                }
+            }
+            JOptionPane.showMessageDialog(this, "Could not save " + fileName + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /*
+     * Shows a profile next to the line numbers if source is the open file
+     * counts has the executions of every line from index 1 on, editing the
+     * text removes them
+     */
+    boolean showProfile(Path source, long[] counts){
+        if(fileName == null || !Paths.get(fileName).toAbsolutePath().normalize()
+                .equals(source.toAbsolutePath().normalize()))
+            return false;
+        lineNumbers.setCounts(counts);
+        status.setText("Execution counts of the last run are shown next to the line numbers");
+        toFront();
+        return true;
+    }
+
+    /*
+     * Reads the file into a new document on a worker thread, the editor and
+     * the background assembler switch to it once it is complete
+     */
+    void openFile(Path path){
+        code_tArea.setEditable(false);
+        status.setText("Opening " + path.getFileName() + "...");
+        Thread loader = new Thread(() -> {
+            PlainDocument document = null;
+            String error = null;
+            try {
+                document = readDocument(path);
+            } catch (IOException | BadLocationException e) {
+                error = "Could not open " + path + ": " + e.getMessage();
+            }
+            final String message = error;
+            final PlainDocument loaded = document;
+            SwingUtilities.invokeLater(() -> {
+                code_tArea.setEditable(true);
+                if(message != null){
+                    status.setText(" ");
+                    JOptionPane.showMessageDialog(IDE.this, message);
+                    return;
+                }
+                assembler.dispose();
+                errors.clear();
+                code_tArea.setDocument(loaded);
+                code_tArea.setCaretPosition(0);
+                fileName = path.toString();
+                assembler = new IncrementalAssembler(loaded, this::assembled);
+            });
+        }, "mips-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /*
+     * Reads in 64K blocks into one buffer and inserts it with a single
+     * insertString, the document builds its line table in one pass
+     * CR LF and lone CR become the \n the document expects
+     */
+    static PlainDocument readDocument(Path path) throws IOException, BadLocationException{
+        final StringBuilder text = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 8, Files.size(path)));
+        try(Reader in = Files.newBufferedReader(path)){
+            final char[] buffer = new char[1 << 16];
+            boolean cr = false;
+            for(int n; (n = in.read(buffer)) > 0; ){
+                for(int i = 0; i < n; ++i){
+                    final char c = buffer[i];
+                    if(cr && c != '\n')
+                        text.append('\n');
+                    cr = c == '\r';
+                    if(!cr)
+                        text.append(c);
+                }
+            }
+            if(cr)
+                text.append('\n');
         }
+        final PlainDocument document = new PlainDocument();
+        document.insertString(0, text.toString(), null);
+        return document;
+    }
+
+    /*
+     * Links every .asm file next to the open one into DIR/DIR.o
+     * Runs off the event thread, the Linker only reassembles changed files
+     */
+    void buildProject(){
+        if(!writeToFile())
+            return;
+        final Path dir = Paths.get(fileName).toAbsolutePath().getParent();
+        final Path output = dir.resolve(dir.getFileName() + ".o");
+        Thread builder = new Thread(() -> {
+            String message;
+            try (Stream<Path> files = Files.list(dir)) {
+                List<Path> sources = files.filter(p -> p.toString().endsWith(".asm")).sorted()
+                        .collect(Collectors.toList());
+                if (sources.isEmpty())
+                    throw new Exception("No .asm files in " + dir);
+                Linker.Result result = Linker.build(sources, output);
+                message = "Built " + output.getFileName() + ", " + result.files + " files, " + result.assembled
+                        + " assembled, " + result.words + " words";
+            } catch (Exception e) {
+                message = e.getMessage();
+            }
+            final String text = message;
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(IDE.this, text));
+        }, "mips-linker");
+        builder.setDaemon(true);
+        builder.start();
     }
 
     class MenuActionListener implements ActionListener{
@@ -97,14 +368,17 @@ class IDE extends JFrame{
                         JOptionPane.showMessageDialog(IDE.this, "Please save file before compiling");
                         return;
                     }
-                    Assembler assembler = new Assembler();
-                try {
-                    assembler.writeMachineCodeToFile(fileName + ".o", code_tArea.getText());
-                    JOptionPane.showMessageDialog(IDE.this, "Compiled Successfully");
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    JOptionPane.showMessageDialog(IDE.this, e.getMessage());
+                // The background assembler already holds the encoded program, the EDT never waits for it
+                final Path output = Paths.get(fileName + ".o");
+                assembler.write(output).whenComplete((done, error) -> SwingUtilities.invokeLater(() ->
+                        JOptionPane.showMessageDialog(IDE.this, error == null ? "Compiled Successfully" : error.getMessage())));
+                break;
+            case "build_project":
+                if(fileName == null){
+                    JOptionPane.showMessageDialog(IDE.this, "Please save file before building");
+                    return;
                 }
+                buildProject();
                 break;
             case "save_file":
                 if(fileName == null){
@@ -123,7 +397,7 @@ class IDE extends JFrame{
                         JOptionPane.showMessageDialog(IDE.this, "Please save file before closing");
                         return;
                     }
-                    if(fileName != null) writeToFile();
+                    if(fileName != null && !writeToFile()) return;
                     code_tArea.setText("");
 
                 break;
@@ -133,24 +407,11 @@ class IDE extends JFrame{
                         JOptionPane.showMessageDialog(IDE.this, "Please save file before closing");
                         return;
                     }
-                    if(fileName != null) writeToFile();
+                    if(fileName != null && !writeToFile()) return;
                     JFileChooser fChooser = new JFileChooser();
                     int status = fChooser.showOpenDialog(IDE.this);
-                    if(status == JFileChooser.APPROVE_OPTION){
-                        fileName = fChooser.getSelectedFile().getAbsolutePath();
-                        Scanner fr;
-                        try {
-                            fr = new Scanner(new FileInputStream(fileName));
-                            String tmp = "";
-                            while(fr.hasNextLine()){
-                                tmp += fr.nextLine() + '\n';
-                            }
-                        code_tArea.setText(tmp);
-                        fr.close();
-                        } catch (FileNotFoundException e) {
-                            e.printStackTrace();
-                        }
-                    }
+                    if(status == JFileChooser.APPROVE_OPTION)
+                        openFile(fChooser.getSelectedFile().toPath().toAbsolutePath());
 
                 break;
             case "close":
@@ -158,7 +419,7 @@ class IDE extends JFrame{
                     JOptionPane.showMessageDialog(IDE.this, "Please save file before closing");
                     return;
                 }
-                if(fileName != null) writeToFile();
+                if(fileName != null && !writeToFile()) return;
                 dispose();
                 break;
             }
@@ -0,0 +1,433 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+
+/*
+ * Keeps an assembled copy of an editor document up to date in the background
+ * Document events only copy the text of the changed lines, a single worker
+ * thread parses those lines, renumbers the lines below an edit that moved
+ * them and encodes the changed instructions. Jumps are indexed by label so
+ * only those whose label moved get their target patched
+ * Results are handed back to the EDT after every batch of edits
+ */
+class IncrementalAssembler implements DocumentListener {
+
+    // Source lines replacing removed lines starting at index
+    private static final class Edit {
+        final int index;
+        final int removed;
+        final String[] added;
+
+        Edit(int index, int removed, String[] added) {
+            this.index = index;
+            this.removed = removed;
+            this.added = added;
+        }
+    }
+
+    private static final class Line {
+        final String text;
+        final Assembler.Instruction inst; // null for blank and invalid lines
+        final boolean invalid;
+        boolean label;
+        boolean jump; // J, BEQ or BNE, encoded again when its label moves
+        boolean dirty = true;
+        boolean removed; // replaced by a later edit, possibly while still queued in dirty
+        int position; // line number - 1
+        int index; // instructions before this line
+        int address = -1; // of a label that is not a duplicate
+        int word;
+        String error;
+
+        Line(String text, Assembler.Instruction inst, boolean invalid) {
+            this.text = text;
+            this.inst = inst;
+            this.invalid = invalid;
+        }
+
+        boolean isInstruction() {
+            return inst != null && !label;
+        }
+
+        String name() {
+            return inst.arguments[0];
+        }
+
+        String target() {
+            return inst.arguments[inst.arguments.length - 1];
+        }
+    }
+
+    // What the EDT gets after every batch, line numbers start at 1
+    static final class Result {
+        int instructions;
+        int[] errorLines;
+        String[] errors;
+        // Sorted by address, null when no label moved since the last result
+        String[] labelNames;
+        int[] labelPCs;
+        long nanos;
+    }
+
+    private final Document document;
+    private final Consumer<Result> listener;
+    private final Assembler assembler = new Assembler();
+    private final List<Line> lines = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Edit> edits = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "mips-assembler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Worker state, kept up to date by diffs instead of scans
+    private final Map<String, Integer> labelLines = new HashMap<>(); // lines defining each label
+    private final Map<String, List<Line>> references = new HashMap<>(); // jumps to each label
+    private final Set<Line> errorLines = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final List<Line> dirty = new ArrayList<>();
+    private final Set<String> moved = new HashSet<>();
+    private int firstShifted = Integer.MAX_VALUE; // first line whose position or index may be stale
+
+    // Must be created on the EDT, takes over the current text of the document
+    IncrementalAssembler(Document document, Consumer<Result> listener) {
+        this.document = document;
+        this.listener = listener;
+        final Element root = document.getDefaultRootElement();
+        submit(new Edit(0, 0, texts(root, 0, root.getElementCount())));
+        document.addDocumentListener(this);
+    }
+
+    void dispose() {
+        document.removeDocumentListener(this);
+        worker.shutdownNow();
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        changed(e);
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        changed(e);
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+    }
+
+    private void changed(DocumentEvent e) {
+        final Element root = document.getDefaultRootElement();
+        final DocumentEvent.ElementChange change = e.getChange(root);
+        if (change == null) {
+            // Edit inside a single line
+            final int index = root.getElementIndex(e.getOffset());
+            submit(new Edit(index, 1, texts(root, index, 1)));
+        } else {
+            final int added = change.getChildrenAdded().length;
+            submit(new Edit(change.getIndex(), change.getChildrenRemoved().length,
+                    texts(root, change.getIndex(), added)));
+        }
+    }
+
+    private String[] texts(Element root, int index, int count) {
+        String[] out = new String[count];
+        try {
+            for (int i = 0; i < count; ++i) {
+                final Element line = root.getElement(index + i);
+                String text = document.getText(line.getStartOffset(), line.getEndOffset() - line.getStartOffset());
+                if (text.endsWith("\n"))
+                    text = text.substring(0, text.length() - 1);
+                out[i] = text;
+            }
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        return out;
+    }
+
+    private void submit(Edit edit) {
+        edits.add(edit);
+        if (scheduled.compareAndSet(false, true))
+            worker.execute(this::process);
+    }
+
+    // Worker thread, applies every queued edit and assembles once
+    private void process() {
+        scheduled.set(false);
+        final long start = System.nanoTime();
+        boolean changed = false;
+        Edit edit;
+        while ((edit = edits.poll()) != null) {
+            apply(edit);
+            changed = true;
+        }
+        if (!changed)
+            return;
+        final boolean labelsMoved = relink();
+        final Result result = result(labelsMoved);
+        result.nanos = System.nanoTime() - start;
+        SwingUtilities.invokeLater(() -> listener.accept(result));
+    }
+
+    private void apply(Edit edit) {
+        List<Line> replaced = lines.subList(edit.index, edit.index + edit.removed);
+        int instructions = 0;
+        boolean labels = false;
+        for (Line line : replaced) {
+            line.removed = true;
+            errorLines.remove(line);
+            if (line.isInstruction())
+                ++instructions;
+            if (line.label) {
+                labels = true;
+                labelLines.merge(line.name(), -1, Integer::sum);
+                if (line.address >= 0)
+                    assembler.labels.remove(line.name());
+                moved.add(line.name());
+            }
+            if (line.jump)
+                references.get(line.target()).remove(line);
+        }
+        replaced.clear();
+        List<Line> added = new ArrayList<>(edit.added.length);
+        for (String text : edit.added) {
+            final Line line = parse(text);
+            if (line.isInstruction())
+                --instructions;
+            if (line.label) {
+                labels = true;
+                labelLines.merge(line.name(), 1, Integer::sum);
+                moved.add(line.name());
+            }
+            if (line.jump)
+                references.computeIfAbsent(line.target(), name -> new ArrayList<>()).add(line);
+            if (line.invalid)
+                errorLines.add(line);
+            else if (line.isInstruction())
+                dirty.add(line);
+            added.add(line);
+        }
+        replaced.addAll(added);
+        if (labels || instructions != 0 || edit.removed != edit.added.length) {
+            // Everything below moves
+            firstShifted = Math.min(firstShifted, edit.index);
+        } else {
+            number(edit.index, edit.index + added.size());
+        }
+    }
+
+    private Line parse(String text) {
+        final String trimmed = text.trim();
+        if (trimmed.isEmpty() || trimmed.charAt(0) == '#')
+            return new Line(text, null, false);
+        final Assembler.Instruction inst = assembler.findInstruction(text);
+        Line line = new Line(text, inst, inst == null);
+        if (inst != null) {
+            line.label = inst.instruction.equals("LABEL");
+            line.jump = inst.instruction.equals("J") || inst.instruction.equals("BEQ")
+                    || inst.instruction.equals("BNE");
+        }
+        return line;
+    }
+
+    // Sets position and instruction index of lines from to end, labels in the range get their address
+    private void number(int from, int to) {
+        int index = 0;
+        if (from > 0) {
+            final Line previous = lines.get(from - 1);
+            index = previous.index + (previous.isInstruction() ? 1 : 0);
+        }
+        for (int i = from; i < to; ++i) {
+            final Line line = lines.get(i);
+            line.position = i;
+            line.index = index;
+            if (line.label)
+                place(line);
+            else if (line.inst != null)
+                ++index;
+        }
+    }
+
+    // The first line defining a label owns it, the others are duplicates
+    private void place(Line line) {
+        final String name = line.name();
+        boolean owner = labelLines.get(name) == 1;
+        if (!owner) {
+            for (Line other : lines) {
+                if (other.label && other.name().equals(name)) {
+                    owner = other == line;
+                    break;
+                }
+            }
+        }
+        if (owner) {
+            line.error = null;
+            errorLines.remove(line);
+            if (line.address != line.index) {
+                line.address = line.index;
+                assembler.labels.put(name, line.index);
+                moved.add(name);
+            }
+        } else {
+            if (line.address >= 0)
+                moved.add(name);
+            line.address = -1;
+            line.error = "Label " + name + " duplicate";
+            errorLines.add(line);
+        }
+    }
+
+    /*
+     * Renumbers the lines below the first edit that shifted them, then
+     * encodes new instructions and patches jumps to labels that moved
+     * Returns true if any label moved
+     */
+    private boolean relink() {
+        if (firstShifted != Integer.MAX_VALUE) {
+            number(firstShifted, lines.size());
+            firstShifted = Integer.MAX_VALUE;
+        }
+        for (String name : moved) {
+            final List<Line> jumps = references.get(name);
+            if (jumps == null)
+                continue;
+            final Integer address = assembler.labels.get(name);
+            for (Line line : jumps) {
+                if (line.dirty)
+                    continue;
+                // Only the target field changes
+                final int mask = line.inst.instruction.equals("J") ? 0x3FFFFFF : 0xFFFF;
+                if (line.error == null && address != null && address <= mask)
+                    line.word = (line.word & ~mask) | address;
+                else
+                    encode(line);
+            }
+        }
+        for (Line line : dirty) {
+            if (!line.removed)
+                encode(line);
+        }
+        dirty.clear();
+        final boolean labelsMoved = !moved.isEmpty();
+        moved.clear();
+        return labelsMoved;
+    }
+
+    // A removed line must never reach errorLines, nothing would take it out again
+    private void encode(Line line) {
+        if (line.removed)
+            return;
+        try {
+            line.word = assembler.getMachineCode(line.inst);
+            line.error = null;
+            errorLines.remove(line);
+        } catch (Exception e) {
+            line.error = e.getMessage();
+            errorLines.add(line);
+        }
+        line.dirty = false;
+    }
+
+    private Result result(boolean labelsMoved) {
+        Result result = new Result();
+        if (!lines.isEmpty()) {
+            final Line last = lines.get(lines.size() - 1);
+            result.instructions = last.index + (last.isInstruction() ? 1 : 0);
+        }
+        Line[] errors = errorLines.toArray(new Line[0]);
+        Arrays.sort(errors, (a, b) -> Integer.compare(a.position, b.position));
+        result.errorLines = new int[errors.length];
+        result.errors = new String[errors.length];
+        for (int i = 0; i < errors.length; ++i) {
+            result.errorLines[i] = errors[i].position + 1;
+            result.errors[i] = errors[i].invalid ? "\'" + errors[i].text.trim() + "\' is not a valid instruction"
+                    : errors[i].error;
+        }
+        if (labelsMoved) {
+            // Sorted as address << 32 | entry so no boxed comparisons are needed
+            final String[] names = assembler.labels.keySet().toArray(new String[0]);
+            final long[] keys = new long[names.length];
+            for (int i = 0; i < names.length; ++i)
+                keys[i] = (long) assembler.labels.get(names[i]) << 32 | i;
+            Arrays.sort(keys);
+            result.labelNames = new String[names.length];
+            result.labelPCs = new int[names.length];
+            for (int i = 0; i < keys.length; ++i) {
+                result.labelNames[i] = names[(int) keys[i]];
+                result.labelPCs[i] = (int) (keys[i] >>> 32);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Writes the current object file like Assembler.assembleFile
+     * Runs on the worker after all edits made so far, fails on the first error
+     * Completes on the worker thread, callers on the EDT must not wait for it
+     */
+    CompletableFuture<Void> write(Path output) {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        worker.execute(() -> {
+            try {
+                process();
+                for (int i = 0; i < lines.size(); ++i) {
+                    final Line line = lines.get(i);
+                    if (line.invalid)
+                        throw new Exception("Line " + (i + 1) + " \'" + line.text + "\' is not a valid instruction");
+                    if (line.error != null)
+                        throw new Exception("Line " + (i + 1) + ": " + line.error);
+                }
+                try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    writeObject(out);
+                }
+                done.complete(null);
+            } catch (Exception e) {
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+
+    private void writeObject(FileChannel out) throws IOException {
+        int count = 0;
+        for (Line line : lines) {
+            if (line.inst != null && !line.label)
+                ++count;
+        }
+        final ObjectFile.Writer writer = new ObjectFile.Writer(out, count, new int[0], Memory.GLOBAL_POINTER,
+                assembler.labels, new HashMap<>(), null, true);
+        for (int i = 0; i < lines.size(); ++i) {
+            final Line line = lines.get(i);
+            if (line.inst != null && !line.label)
+                writer.word(line.word, i + 1);
+        }
+        writer.finish();
+    }
+
+}
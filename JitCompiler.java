@@ -0,0 +1,404 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Second tier of the block engine
+ * Blocks that ran HOT_THRESHOLD times are translated into a hidden class
+ * whose run method keeps the MIPS registers in JVM locals, so HotSpot
+ * can compile the whole block to native code
+ * Generated code is straight-line (the terminating branch stays with
+ * the block engine), which keeps the class files free of stack maps
+ * Blocks holding an instruction the translator does not know, or too
+ * long for one JVM method or constant pool, keep running as threaded code
+ * Classes are kept in the Program, machines running the same program
+ * translate every block once between them and only build their own
+ * instance, faultPC being per machine
+ */
+class JitCompiler {
+
+    static final int HOT_THRESHOLD = 1000;
+    static final int CACHE_SIZE = 512;
+    // Class file limits, the code of a method and the constant pool count are u2
+    private static final int MAX_CODE_LENGTH = 65535;
+    private static final int MAX_POOL_COUNT = 65535;
+    // Marks blocks in Program.translations that stay threaded code
+    private static final MethodHandle UNTRANSLATABLE = MethodHandles.constant(Object.class, null);
+
+    // Superclass of every translated block
+    abstract static class CompiledBlock {
+        // Set before every memory access, so faults can be traced back
+        int faultPC;
+
+        abstract void run(int[] r, Memory m);
+    }
+
+    private final Program program;
+    // Oldest translations are dropped first, their blocks fall back to threaded code
+    private final LinkedHashMap<BlockEngine.Block, CompiledBlock> cache =
+            new LinkedHashMap<BlockEngine.Block, CompiledBlock>() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<BlockEngine.Block, CompiledBlock> eldest) {
+                    if (size() <= CACHE_SIZE)
+                        return false;
+                    eldest.getKey().compiled = null;
+                    eldest.getKey().hits = 0;
+                    // Machines still holding an instance keep the class alive
+                    program.translations.remove(eldest.getKey().start);
+                    return true;
+                }
+            };
+
+    JitCompiler(Program program) {
+        this.program = program;
+    }
+
+    int getCacheSize() {
+        return cache.size();
+    }
+
+    // Returns false when the block keeps running the threaded ops
+    boolean compile(BlockEngine.Block block) {
+        final MethodHandle constructor = program.translations.computeIfAbsent(block.start, start -> define(block));
+        if (constructor == UNTRANSLATABLE)
+            return false;
+        try {
+            block.compiled = (CompiledBlock) constructor.invoke();
+        } catch (Throwable e) {
+            return false;
+        }
+        cache.put(block, block.compiled);
+        return true;
+    }
+
+    // Constructor of the hidden class translated from block
+    private MethodHandle define(BlockEngine.Block block) {
+        final byte[] bytes = translate(block);
+        if (bytes == null)
+            return UNTRANSLATABLE;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class));
+        } catch (Throwable e) {
+            return UNTRANSLATABLE;
+        }
+    }
+
+    // Returns null if the block holds an instruction that can not be translated or does not fit a class file
+    byte[] translate(BlockEngine.Block block) {
+        final Program p = program;
+        final int end = bodyEnd(block);
+        ClassBuilder cb = new ClassBuilder();
+        Code code = new Code(cb);
+        // Load every register the block uses
+        boolean[] used = new boolean[Machine.REGISTER_COUNT];
+        for (int i = block.start; i < end; ++i) {
+            used[p.rs[i]] = true;
+            used[p.rt[i]] = true;
+            used[p.rd[i]] = true;
+        }
+        for (int n = 1; n < Machine.REGISTER_COUNT; ++n) {
+            if (used[n]) {
+                code.op(ALOAD_1).pushInt(n).op(IALOAD).local(ISTORE, n + 3);
+            }
+        }
+        for (int i = block.start; i < end; ++i) {
+            final int rs = p.rs[i];
+            final int rt = p.rt[i];
+            final int immediate = p.immediate[i];
+            switch (p.opcode[i]) {
+            case 0: {
+                final int rd = p.rd[i];
+                switch (p.funct[i]) {
+                case 32:
+                    code.read(rs).read(rt).op(IADD).write(rd);
+                    break;
+                case 34:
+                    code.read(rs).read(rt).op(ISUB).write(rd);
+                    break;
+                case 36:
+                    code.read(rs).read(rt).op(IAND).write(rd);
+                    break;
+                case 37:
+                    code.read(rs).read(rt).op(IOR).write(rd);
+                    break;
+                case 42:
+                    code.read(rs).read(rt).lessThan().write(rd);
+                    break;
+                case 0:
+                    code.read(rs).pushInt(p.shamt[i]).op(ISHL).write(rd);
+                    break;
+                default:
+                    return null;
+                }
+                break;
+            }
+            case 35: // LW
+                code.spill().fault(i).op(ALOAD_2).read(rs).pushInt(immediate).op(IADD)
+                        .invoke(INVOKEVIRTUAL, "Memory", "loadWord", "(I)I").write(rt);
+                break;
+            case 43: // SW
+                code.spill().fault(i).op(ALOAD_2).read(rs).pushInt(immediate).op(IADD).read(rt)
+                        .invoke(INVOKEVIRTUAL, "Memory", "storeWord", "(II)V");
+                break;
+            case 8: // ADDI
+                code.read(rs).pushInt(immediate).op(IADD).write(rt);
+                break;
+            case 12: // ANDI
+                code.read(rs).pushInt(immediate).op(IAND).write(rt);
+                break;
+            case 13: // ORI
+                code.read(rs).pushInt(immediate).op(IOR).write(rt);
+                break;
+            case 10: // SLTI
+                code.read(rs).pushInt(immediate).lessThan().write(rt);
+                break;
+            case 15: // LUI
+                code.pushInt(immediate << 16).write(rs);
+                break;
+            default:
+                return null;
+            }
+            // Gives up early on huge blocks, build has the final word
+            if (code.bytes.size() > MAX_CODE_LENGTH || cb.count > MAX_POOL_COUNT)
+                return null;
+        }
+        code.spill().op(RETURN);
+
+        Code init = new Code(cb);
+        init.op(ALOAD_0).invoke(INVOKESPECIAL, SUPER, "<init>", "()V").op(RETURN);
+        return cb.build(init, code);
+    }
+
+    // First program counter after the body of a block, the terminator is not part of it
+    private int bodyEnd(BlockEngine.Block block) {
+        final int last = block.start + block.length - 1;
+        return BlockEngine.isTerminator(program, last) ? last : last + 1;
+    }
+
+    private static final String SUPER = "JitCompiler$CompiledBlock";
+    private static final String RUN_DESCRIPTOR = "([ILMemory;)V";
+
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int IALOAD = 0x2e;
+    private static final int ISTORE = 0x36;
+    private static final int IASTORE = 0x4f;
+    private static final int POP = 0x57;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int ISHL = 0x78;
+    private static final int IUSHR = 0x7c;
+    private static final int IAND = 0x7e;
+    private static final int IOR = 0x80;
+    private static final int RETURN = 0xb1;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    // Straight-line method body, MIPS register n lives in local n + 3
+    private static class Code {
+
+        final ClassBuilder cb;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final boolean[] dirty = new boolean[Machine.REGISTER_COUNT];
+
+        Code(ClassBuilder cb) {
+            this.cb = cb;
+        }
+
+        Code op(int opcode) {
+            bytes.write(opcode);
+            return this;
+        }
+
+        Code u2(int value) {
+            bytes.write(value >>> 8);
+            bytes.write(value);
+            return this;
+        }
+
+        Code local(int opcode, int index) {
+            return op(opcode).op(index);
+        }
+
+        Code pushInt(int value) {
+            if (value >= -1 && value <= 5)
+                return op(ICONST_0 + value);
+            if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+                return op(BIPUSH).op(value & 0xFF);
+            if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+                return op(SIPUSH).u2(value & 0xFFFF);
+            return op(LDC_W).u2(cb.integer(value));
+        }
+
+        Code read(int register) {
+            return register == 0 ? op(ICONST_0) : local(ILOAD, register + 3);
+        }
+
+        Code write(int register) {
+            if (register == 0)
+                return op(POP);
+            dirty[register] = true;
+            return local(ISTORE, register + 3);
+        }
+
+        // Signed a < b as 0 or 1 without a branch
+        Code lessThan() {
+            return invoke(INVOKESTATIC, "java/lang/Integer", "compare", "(II)I").pushInt(31).op(IUSHR);
+        }
+
+        // Writes modified registers back to the array
+        Code spill() {
+            for (int n = 1; n < Machine.REGISTER_COUNT; ++n) {
+                if (dirty[n]) {
+                    op(ALOAD_1).pushInt(n).read(n).op(IASTORE);
+                    dirty[n] = false;
+                }
+            }
+            return this;
+        }
+
+        Code fault(int pc) {
+            return op(ALOAD_0).pushInt(pc).op(PUTFIELD).u2(cb.field(SUPER, "faultPC", "I"));
+        }
+
+        Code invoke(int opcode, String owner, String name, String descriptor) {
+            return op(opcode).u2(cb.method(owner, name, descriptor));
+        }
+
+    }
+
+    // Minimal class file writer, just enough for one constructor and run
+    private static class ClassBuilder {
+
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final HashMap<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        private int entry(String key, int tag, byte[] body) {
+            Integer index = entries.get(key);
+            if (index != null)
+                return index;
+            pool.write(tag);
+            pool.write(body, 0, body.length);
+            entries.put(key, count);
+            return count++;
+        }
+
+        int utf8(String value) {
+            try {
+                ByteArrayOutputStream b = new ByteArrayOutputStream();
+                new DataOutputStream(b).writeUTF(value);
+                return entry("U" + value, 1, b.toByteArray());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        int integer(int value) {
+            return entry("I" + value, 3, new byte[] { (byte) (value >>> 24), (byte) (value >>> 16),
+                    (byte) (value >>> 8), (byte) value });
+        }
+
+        int type(String name) {
+            return entry("C" + name, 7, u2(utf8(name)));
+        }
+
+        private int nameAndType(String name, String descriptor) {
+            final int n = utf8(name);
+            final int d = utf8(descriptor);
+            return entry("N" + name + ' ' + descriptor, 12, u2(n, d));
+        }
+
+        int field(String owner, String name, String descriptor) {
+            final int c = type(owner);
+            final int nt = nameAndType(name, descriptor);
+            return entry("F" + owner + ' ' + name, 9, u2(c, nt));
+        }
+
+        int method(String owner, String name, String descriptor) {
+            final int c = type(owner);
+            final int nt = nameAndType(name, descriptor);
+            return entry("M" + owner + ' ' + name + descriptor, 10, u2(c, nt));
+        }
+
+        private static byte[] u2(int... values) {
+            byte[] b = new byte[values.length * 2];
+            for (int i = 0; i < values.length; ++i) {
+                b[i * 2] = (byte) (values[i] >>> 8);
+                b[i * 2 + 1] = (byte) values[i];
+            }
+            return b;
+        }
+
+        // Returns null when run or the constant pool exceed the class file limits
+        byte[] build(Code init, Code run) {
+            try {
+                final int thisClass = type("JitBlock");
+                final int superClass = type(SUPER);
+                final int initName = utf8("<init>");
+                final int initDescriptor = utf8("()V");
+                final int runName = utf8("run");
+                final int runDescriptor = utf8(RUN_DESCRIPTOR);
+                final int codeName = utf8("Code");
+                if (run.bytes.size() > MAX_CODE_LENGTH || count > MAX_POOL_COUNT)
+                    return null;
+
+                ByteArrayOutputStream b = new ByteArrayOutputStream();
+                DataOutputStream file = new DataOutputStream(b);
+                file.writeInt(0xCAFEBABE);
+                file.writeShort(0);
+                file.writeShort(52);
+                file.writeShort(count);
+                pool.writeTo(file);
+                file.writeShort(0x0030); // final super
+                file.writeShort(thisClass);
+                file.writeShort(superClass);
+                file.writeShort(0); // interfaces
+                file.writeShort(0); // fields
+                file.writeShort(2);
+                writeMethod(file, 0x0001, initName, initDescriptor, codeName, init, 1, 1);
+                writeMethod(file, 0x0001, runName, runDescriptor, codeName, run, 6, Machine.REGISTER_COUNT + 3);
+                file.writeShort(0); // attributes
+                return b.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static void writeMethod(DataOutputStream file, int access, int name, int descriptor, int codeName,
+                Code code, int maxStack, int maxLocals) throws IOException {
+            final byte[] body = code.bytes.toByteArray();
+            file.writeShort(access);
+            file.writeShort(name);
+            file.writeShort(descriptor);
+            file.writeShort(1);
+            file.writeShort(codeName);
+            file.writeInt(12 + body.length);
+            file.writeShort(maxStack);
+            file.writeShort(maxLocals);
+            file.writeInt(body.length);
+            file.write(body);
+            file.writeShort(0); // exception table
+            file.writeShort(0); // attributes
+        }
+
+    }
+
+}
@@ -0,0 +1,217 @@
+import java.util.Arrays;
+
+/*
+ * Undo history for reverse execution
+ * Before every instruction the interpreter records its program counter and
+ * the old value of the register or memory word it is about to overwrite
+ * in a ring buffer of primitive arrays, so stepping back is a constant
+ * time undo
+ * Every snapshotInterval instructions a full copy of the registers and the
+ * allocated pages is kept as well, the oldest one is dropped once
+ * snapshotCount are held. Rewinding past the ring restores the nearest
+ * older snapshot and replays forward, programs have no input so the
+ * replay is exact
+ * Metrics and profile counts are not rewound
+ */
+class Journal {
+
+    private static final byte NONE = 0;
+    private static final byte REGISTER = 1;
+    private static final byte MEMORY = 2;
+
+    static final class Snapshot {
+        long steps;
+        int pc;
+        int[] registers;
+        int[] pageNumbers;
+        int[][] pages;
+    }
+
+    private final int capacity;
+    private final int[] pcs;
+    private final byte[] kinds;
+    private final int[] targets; // register number or address
+    private final int[] oldValues;
+    private int first;
+    private int count;
+
+    private final long snapshotInterval;
+    private final Snapshot[] snapshots;
+    private int snapshotFirst;
+    private int snapshotCount;
+
+    Journal(int capacity, long snapshotInterval, int snapshotCount) {
+        this.capacity = capacity;
+        this.pcs = new int[capacity];
+        this.kinds = new byte[capacity];
+        this.targets = new int[capacity];
+        this.oldValues = new int[capacity];
+        // A replay from a snapshot has to fit into the ring or stepping back would replay again
+        this.snapshotInterval = Math.max(1, Math.min(snapshotInterval, capacity));
+        this.snapshots = new Snapshot[Math.max(1, snapshotCount)];
+    }
+
+    void clear() {
+        first = 0;
+        count = 0;
+        snapshotFirst = 0;
+        snapshotCount = 0;
+        Arrays.fill(snapshots, null);
+    }
+
+    // Number of instructions that can be undone without a replay
+    int size() {
+        return count;
+    }
+
+    // Called by the interpreter before the instruction at pc executes
+    void record(Machine machine, int pc, int opcode) {
+        final long steps = machine.getSteps();
+        if (steps % snapshotInterval == 0 && (snapshotCount == 0 || newestSnapshot().steps < steps))
+            takeSnapshot(machine);
+        final Program p = machine.getProgram();
+        final int[] r = machine.registers;
+        byte kind = REGISTER;
+        int target;
+        int old = 0;
+        switch (opcode) {
+        case 0:
+            if (p.funct[pc] == 8) {
+                kind = NONE;
+                target = 0;
+            } else {
+                target = p.rd[pc];
+            }
+            break;
+        case 15: // LUI writes rs
+            target = p.rs[pc];
+            break;
+        case 35: // LW
+            if (((r[p.rs[pc]] + p.immediate[pc]) & 3) != 0)
+                return; // Faults without executing
+            target = p.rt[pc];
+            break;
+        case 43: // SW
+            target = r[p.rs[pc]] + p.immediate[pc];
+            if ((target & 3) != 0)
+                return;
+            kind = MEMORY;
+            old = machine.memory.peekWord(target);
+            break;
+        case 2:
+        case 4:
+        case 5:
+            kind = NONE;
+            target = 0;
+            break;
+        default:
+            target = p.rt[pc];
+            break;
+        }
+        if (kind == REGISTER)
+            old = r[target];
+        int at;
+        if (count == capacity) {
+            at = first;
+            first = (first + 1) % capacity;
+        } else {
+            at = (first + count) % capacity;
+            ++count;
+        }
+        pcs[at] = pc;
+        kinds[at] = kind;
+        targets[at] = target;
+        oldValues[at] = old;
+    }
+
+    /*
+     * Undoes the last instruction
+     * Returns false when the machine is at the oldest reachable state
+     */
+    boolean stepBack(Machine machine) {
+        if (count == 0)
+            return machine.getSteps() > 0 && goToStep(machine, machine.getSteps() - 1);
+        --count;
+        final int at = (first + count) % capacity;
+        if (kinds[at] == REGISTER)
+            machine.setRegister(targets[at], oldValues[at]);
+        else if (kinds[at] == MEMORY)
+            machine.memory.pokeWord(targets[at], oldValues[at]);
+        machine.setPC(pcs[at]);
+        machine.addSteps(-1);
+        return true;
+    }
+
+    /*
+     * Steps back until the instruction at pc is the next one to execute
+     * Returns the number of instructions undone, stops early at the oldest
+     * reachable state
+     */
+    long runBackTo(Machine machine, int pc) {
+        long n = 0;
+        while (stepBack(machine)) {
+            ++n;
+            if (machine.getPC() == pc)
+                break;
+        }
+        return n;
+    }
+
+    // Restores the newest snapshot at or before step and replays up to it
+    private boolean goToStep(Machine machine, long step) {
+        Snapshot snapshot = null;
+        for (int i = snapshotCount - 1; i >= 0 && snapshot == null; --i) {
+            final Snapshot candidate = snapshots[(snapshotFirst + i) % snapshots.length];
+            if (candidate.steps <= step)
+                snapshot = candidate;
+        }
+        if (snapshot == null)
+            return false;
+        final Memory memory = machine.memory;
+        memory.clear();
+        for (int i = 0; i < snapshot.pageNumbers.length; ++i)
+            System.arraycopy(snapshot.pages[i], 0, memory.allocatePage(snapshot.pageNumbers[i]), 0,
+                    Memory.PAGE_WORDS);
+        System.arraycopy(snapshot.registers, 0, machine.registers, 0, Machine.REGISTER_COUNT);
+        machine.setPC(snapshot.pc);
+        machine.addSteps(snapshot.steps - machine.getSteps());
+        first = 0;
+        count = 0;
+        // Breakpoints and watchpoints stay quiet during the replay, metrics and tracers saw it the first time
+        final Breakpoints breakpoints = machine.getBreakpoints();
+        machine.untraced(() -> {
+            while (machine.getSteps() < step) {
+                if (breakpoints != null)
+                    breakpoints.resume(machine);
+                machine.step();
+            }
+        });
+        if (breakpoints != null)
+            breakpoints.takeHit();
+        return true;
+    }
+
+    private Snapshot newestSnapshot() {
+        return snapshots[(snapshotFirst + snapshotCount - 1) % snapshots.length];
+    }
+
+    private void takeSnapshot(Machine machine) {
+        Snapshot snapshot = new Snapshot();
+        snapshot.steps = machine.getSteps();
+        snapshot.pc = machine.getPC();
+        snapshot.registers = machine.registers.clone();
+        final Memory memory = machine.memory;
+        snapshot.pageNumbers = memory.getPageNumbers();
+        snapshot.pages = new int[snapshot.pageNumbers.length][];
+        for (int i = 0; i < snapshot.pages.length; ++i)
+            snapshot.pages[i] = memory.getPage(snapshot.pageNumbers[i]).clone();
+        if (snapshotCount == snapshots.length) {
+            snapshots[snapshotFirst] = snapshot;
+            snapshotFirst = (snapshotFirst + 1) % snapshots.length;
+        } else {
+            snapshots[(snapshotFirst + snapshotCount) % snapshots.length] = snapshot;
+            ++snapshotCount;
+        }
+    }
+
+}
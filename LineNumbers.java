@@ -0,0 +1,126 @@
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+
+import javax.swing.JComponent;
+import javax.swing.JTextArea;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+
+/*
+ * Row header with the line numbers of a JTextArea
+ * Lines have a fixed height, so the numbers in the clip are computed
+ * rather than looked up and painting costs the same for any file size
+ * Follows the text area when it gets a new document
+ * A profile adds the execution count of every line left of its number,
+ * shaded by its share of the hottest line, until the text changes
+ */
+class LineNumbers extends JComponent implements DocumentListener {
+
+    private static final long serialVersionUID = 6019378236155187045L;
+    private static final int MARGIN = 6;
+    private static final Color HOT = new Color(0xC0, 0x30, 0x00);
+
+    private final JTextArea text;
+    private int lines = -1;
+    private int digits;
+    private long[] counts; // per line from 1, null without a profile
+    private long hottest;
+    private int countDigits;
+
+    LineNumbers(JTextArea text) {
+        this.text = text;
+        setFont(text.getFont());
+        setForeground(Color.GRAY);
+        setBackground(new Color(0xF0, 0xF0, 0xF0));
+        setOpaque(true);
+        text.getDocument().addDocumentListener(this);
+        text.addPropertyChangeListener("document", e -> {
+            if (e.getOldValue() != null)
+                ((Document) e.getOldValue()).removeDocumentListener(this);
+            ((Document) e.getNewValue()).addDocumentListener(this);
+            setCounts(null);
+            changed();
+        });
+        changed();
+    }
+
+    // Execution counts by line number, index 0 is ignored, null removes them
+    void setCounts(long[] counts) {
+        this.counts = counts;
+        hottest = 0;
+        if (counts != null) {
+            for (int line = 1; line < counts.length; ++line)
+                hottest = Math.max(hottest, counts[line]);
+        }
+        countDigits = hottest == 0 ? 0 : String.valueOf(hottest).length();
+        revalidate();
+        repaint();
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        final FontMetrics metrics = getFontMetrics(getFont());
+        final int countWidth = countDigits == 0 ? 0 : MARGIN + countDigits * metrics.charWidth('0');
+        return new Dimension(2 * MARGIN + countWidth + digits * metrics.charWidth('0'),
+                text.getPreferredSize().height);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        final Rectangle clip = g.getClipBounds();
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        final FontMetrics metrics = g.getFontMetrics(getFont());
+        final int height = metrics.getHeight();
+        final int top = text.getInsets().top;
+        final int first = Math.max(0, (clip.y - top) / height);
+        final int last = Math.min(lines - 1, (clip.y + clip.height - top) / height);
+        final int countRight = MARGIN + countDigits * metrics.charWidth('0');
+        for (int line = first; line <= last; ++line) {
+            final int y = top + line * height;
+            final long count = counts != null && line + 1 < counts.length ? counts[line + 1] : 0;
+            if (count > 0) {
+                g.setColor(new Color(HOT.getRed(), HOT.getGreen(), HOT.getBlue(), (int) (24 + 128 * count / hottest)));
+                g.fillRect(0, y, getWidth(), height);
+                final String executed = String.valueOf(count);
+                g.setColor(HOT);
+                g.drawString(executed, countRight - metrics.stringWidth(executed), y + metrics.getAscent());
+            }
+            g.setColor(getForeground());
+            final String number = String.valueOf(line + 1);
+            g.drawString(number, getWidth() - MARGIN - metrics.stringWidth(number), y + metrics.getAscent());
+        }
+    }
+
+    // Numbers only move when the line count changes, typing within a line repaints nothing
+    // Counts belong to the text that was built, so any edit drops them
+    private void changed() {
+        if (counts != null)
+            setCounts(null);
+        if (text.getLineCount() == lines)
+            return;
+        lines = text.getLineCount();
+        digits = String.valueOf(lines).length();
+        revalidate();
+        repaint();
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        changed();
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        changed();
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+    }
+
+}
@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/*
+ * Joins relocatable objects into one executable ObjectFile
+ * Text sections are laid out one after the other, the object that defines
+ * main first, then every J/BEQ/BNE field is patched with the final target
+ * A label resolves to the file's own definition if it has one, otherwise it
+ * must be defined by exactly one other file
+ * Data sections keep their addresses and must not overlap
+ * The output has no line table since its words come from several sources
+ *
+ * build reassembles, in parallel, only the sources whose SOURCE.rel is
+ * missing or older than the source, then links
+ */
+class Linker {
+
+    static final String RELOCATABLE = ".rel";
+    static final String ENTRY = "main";
+    // Only this many unresolved references are listed, the count covers all
+    private static final int MAX_ERRORS = 20;
+
+    static class Result {
+        int files;
+        int assembled; // sources that had to be reassembled
+        int words;
+    }
+
+    // Assembles what changed and links every source into output
+    static Result build(List<Path> sources, Path output) throws Exception {
+        List<Path> stale = new ArrayList<>();
+        for (Path source : sources) {
+            if (isStale(source))
+                stale.add(source);
+        }
+        // One Assembler per file, the label table is per instance
+        final String errors = stale.parallelStream().map(source -> {
+            try {
+                new Assembler().assembleRelocatable(source, objectOf(source));
+                return null;
+            } catch (Exception e) {
+                return source.getFileName() + ": " + e.getMessage();
+            }
+        }).filter(error -> error != null).collect(Collectors.joining("\n"));
+        if (!errors.isEmpty())
+            throw new Exception(errors);
+
+        List<Path> objects = new ArrayList<>();
+        for (Path source : sources)
+            objects.add(objectOf(source));
+        Result result = new Result();
+        result.files = sources.size();
+        result.assembled = stale.size();
+        result.words = link(objects, output);
+        return result;
+    }
+
+    static Path objectOf(Path source) {
+        return source.resolveSibling(source.getFileName() + RELOCATABLE);
+    }
+
+    private static boolean isStale(Path source) throws IOException {
+        final Path object = objectOf(source);
+        if (!Files.exists(object)
+                || Files.getLastModifiedTime(object).compareTo(Files.getLastModifiedTime(source)) < 0)
+            return true;
+        try {
+            final ObjectFile map = ObjectFile.map(object);
+            return map == null || !map.isRelocatable();
+        } catch (IOException e) {
+            return true; // damaged or from another version, assemble it again
+        }
+    }
+
+    /*
+     * Links the relocatable objects into output
+     * Throws IOException listing every unresolved, ambiguous or out of
+     * reach label
+     * Returns the number of text words
+     */
+    static int link(List<Path> paths, Path output) throws IOException {
+        final int n = paths.size();
+        ObjectFile[] objects = new ObjectFile[n];
+        String[] names = new String[n];
+        for (int i = 0; i < n; ++i) {
+            objects[i] = ObjectFile.map(paths.get(i));
+            names[i] = paths.get(i).getFileName().toString();
+            if (names[i].endsWith(RELOCATABLE))
+                names[i] = names[i].substring(0, names[i].length() - RELOCATABLE.length());
+            if (objects[i] == null || !objects[i].isRelocatable())
+                throw new IOException(names[i] + " is not a relocatable object");
+        }
+
+        // The entry point runs from PC 0, the rest keep their order
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; ++i)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Boolean.compare(objects[b].section(ENTRY) == ObjectFile.TEXT,
+                objects[a].section(ENTRY) == ObjectFile.TEXT));
+        final int[] base = new int[n];
+        long total = 0;
+        for (int i : order) {
+            base[i] = (int) total;
+            total += objects[i].textWords;
+            if (total > 0x3FFFFFF)
+                throw new IOException("Linked program is too large for J targets");
+        }
+
+        // Labels and the files defining them
+        Map<String, List<Integer>> definitions = new HashMap<>();
+        for (int i = 0; i < n; ++i) {
+            for (String label : objects[i].labelNames())
+                definitions.computeIfAbsent(label, k -> new ArrayList<>()).add(i);
+        }
+
+        StringBuilder errors = new StringBuilder();
+        int errorCount = 0;
+        final int[] text = new int[(int) total];
+        for (int i : order) {
+            final ObjectFile object = objects[i];
+            final int[] words = object.text();
+            System.arraycopy(words, 0, text, base[i], words.length);
+            for (int r = 0; r < object.relocationCount(); ++r) {
+                final int pc = object.relocationPC(r);
+                final String label = object.relocationSymbol(r);
+                if (pc < 0 || pc >= words.length)
+                    throw new IOException(names[i] + " is damaged, relocation " + r + " is outside the text");
+                final String where = names[i] + " line " + object.lineOf(pc) + ": ";
+                int target;
+                if (object.section(label) == ObjectFile.TEXT) {
+                    target = base[i] + object.symbol(label);
+                } else {
+                    final List<Integer> files = definitions.getOrDefault(label, Collections.emptyList());
+                    if (files.size() != 1) {
+                        if (++errorCount > MAX_ERRORS)
+                            continue;
+                        errors.append(where).append("Label ").append(label).append(files.isEmpty() ? " not found"
+                                : " is defined in " + files.stream().map(f -> names[f]).collect(Collectors.joining(
+                                        " and "))).append('\n');
+                        continue;
+                    }
+                    final int file = files.get(0);
+                    target = base[file] + objects[file].symbol(label);
+                }
+                final int word = text[base[i] + pc];
+                final int opcode = word >>> 26;
+                if (opcode == 2) {
+                    text[base[i] + pc] = word & ~0x3FFFFFF | target;
+                } else if (target > 0xFFFF) {
+                    if (++errorCount <= MAX_ERRORS)
+                        errors.append(where).append("Label ").append(label).append(" is out of reach\n");
+                } else {
+                    text[base[i] + pc] = word & ~0xFFFF | target;
+                }
+            }
+        }
+        if (errorCount > MAX_ERRORS)
+            errors.append(errorCount - MAX_ERRORS).append(" more errors");
+        if (errorCount > 0)
+            throw new IOException(errors.toString().trim());
+
+        // Labels defined once keep their name, the others are qualified with their file
+        Map<String, Integer> symbols = new HashMap<>();
+        for (int i = 0; i < n; ++i) {
+            final String[] labels = objects[i].labelNames();
+            final int[] pcs = objects[i].labelPCs();
+            for (int k = 0; k < labels.length; ++k) {
+                final boolean unique = definitions.get(labels[k]).size() == 1;
+                symbols.put(unique ? labels[k] : names[i] + ":" + labels[k], base[i] + pcs[k]);
+            }
+        }
+        final int[][] sections = new int[n][];
+        for (int i = 0; i < n; ++i)
+            sections[i] = objects[i].data();
+        final int dataAddress = mergeData(objects, sections, names);
+        final int[] data = dataAddress == -1 ? new int[0] : data(objects, sections, dataAddress);
+
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ObjectFile.Writer writer = new ObjectFile.Writer(out, text.length, data,
+                    dataAddress == -1 ? Memory.GLOBAL_POINTER : dataAddress, symbols, new HashMap<>(), null, false);
+            for (int word : text)
+                writer.word(word, 0);
+            writer.finish();
+        }
+        return text.length;
+    }
+
+    // Lowest data address, -1 when no object has data, throws when two sections overlap
+    private static int mergeData(ObjectFile[] objects, int[][] sections, String[] names) throws IOException {
+        Integer[] order = new Integer[objects.length];
+        int count = 0;
+        for (int i = 0; i < objects.length; ++i) {
+            if (sections[i].length > 0)
+                order[count++] = i;
+        }
+        if (count == 0)
+            return -1;
+        order = Arrays.copyOf(order, count);
+        Arrays.sort(order, (a, b) -> Integer.compareUnsigned(objects[a].dataAddress, objects[b].dataAddress));
+        for (int k = 1; k < count; ++k) {
+            final int previous = order[k - 1];
+            if (end(objects[previous], sections[previous]) > Integer.toUnsignedLong(objects[order[k]].dataAddress))
+                throw new IOException("Data of " + names[previous] + " and " + names[order[k]] + " overlap");
+        }
+        final int last = order[count - 1];
+        if (end(objects[last], sections[last]) - Integer.toUnsignedLong(objects[order[0]].dataAddress)
+                > Integer.MAX_VALUE / 4)
+            throw new IOException("Data sections are too far apart");
+        return objects[order[0]].dataAddress;
+    }
+
+    private static long end(ObjectFile object, int[] section) {
+        return Integer.toUnsignedLong(object.dataAddress) + section.length * 4L;
+    }
+
+    // One data section from dataAddress on, gaps between the objects are zero
+    private static int[] data(ObjectFile[] objects, int[][] sections, int dataAddress) {
+        int end = 0;
+        for (int i = 0; i < objects.length; ++i) {
+            if (sections[i].length > 0)
+                end = Math.max(end, (objects[i].dataAddress - dataAddress) / 4 + sections[i].length);
+        }
+        final int[] data = new int[end];
+        for (int i = 0; i < objects.length; ++i) {
+            if (sections[i].length > 0)
+                System.arraycopy(sections[i], 0, data, (objects[i].dataAddress - dataAddress) / 4, sections[i].length);
+        }
+        return data;
+    }
+
+}
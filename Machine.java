@@ -0,0 +1,382 @@
+import java.util.Arrays;
+
+/*
+ * Headless MIPS-32 execution engine
+ * Holds the register file, the program counter and memory as plain
+ * primitives and has no Swing references, so it can be driven by the
+ * Simulator window or run on its own
+ * The program counter is the index of the next instruction word
+ */
+class Machine {
+
+    static final int REGISTER_COUNT = 32;
+
+    enum Engine {
+        INTERPRETER, THREADED, JIT
+    }
+
+    /*
+     * Side models such as caches see every executed instruction
+     * address is the effective address of LW/SW, next the following PC
+     * Statistics are per run, reset starts over with a cold model
+     */
+    interface Tracer {
+        void trace(int pc, int opcode, int address, boolean taken, int next);
+
+        void reset();
+    }
+
+    final int[] registers = new int[REGISTER_COUNT];
+    final Memory memory = new Memory();
+    private Program program = new Program(new int[0]);
+    private int pc;
+    private long steps;
+    private Engine engine = Engine.INTERPRETER;
+    private BlockEngine blockEngine;
+    private Metrics metrics;
+    private Profiler profiler;
+    private Journal journal;
+    private Breakpoints breakpoints;
+    private boolean stopped;
+    private Tracer[] tracers; // null when nothing traces
+
+    void load(Program program) {
+        this.program = program;
+        this.blockEngine = null;
+        reset();
+    }
+
+    void load(int[] words) {
+        load(new Program(words));
+    }
+
+    void reset() {
+        for (int i = 0; i < REGISTER_COUNT; ++i) {
+            registers[i] = 0;
+        }
+        registers[28] = Memory.GLOBAL_POINTER;
+        registers[29] = Memory.STACK_POINTER;
+        memory.clear();
+        program.loadData(memory);
+        pc = 0;
+        steps = 0;
+        if (journal != null)
+            journal.clear();
+        if (profiler != null)
+            profiler.reset();
+        if (tracers != null) {
+            for (Tracer tracer : tracers)
+                tracer.reset();
+        }
+    }
+
+    // Runs body without counting, profiling or tracing, for replays of instructions that were already seen
+    void untraced(Runnable body) {
+        final Metrics savedMetrics = metrics;
+        final Profiler savedProfiler = profiler;
+        final Tracer[] savedTracers = tracers;
+        metrics = null;
+        profiler = null;
+        tracers = null;
+        try {
+            body.run();
+        } finally {
+            metrics = savedMetrics;
+            profiler = savedProfiler;
+            tracers = savedTracers;
+        }
+    }
+
+    boolean isHalted() {
+        return pc < 0 || pc >= program.length();
+    }
+
+    int getPC() {
+        return pc;
+    }
+
+    void setPC(int pc) {
+        this.pc = pc;
+    }
+
+    long getSteps() {
+        return steps;
+    }
+
+    void addSteps(long n) {
+        steps += n;
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    // Counting is off while metrics is null
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    Profiler getProfiler() {
+        return profiler;
+    }
+
+    // Profiling is off while profiler is null
+    void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    Journal getJournal() {
+        return journal;
+    }
+
+    // Recording history needs every instruction, so the interpreter runs while a journal is set
+    void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    Breakpoints getBreakpoints() {
+        return breakpoints;
+    }
+
+    // Like the journal, breakpoints run every engine through the interpreter
+    void setBreakpoints(Breakpoints breakpoints) {
+        this.breakpoints = breakpoints;
+    }
+
+    // True when the last run or step ended on a breakpoint or watchpoint
+    boolean isStopped() {
+        return stopped;
+    }
+
+    // Tracing needs every instruction, so the interpreter runs while a tracer is attached
+    void addTracer(Tracer tracer) {
+        final int n = tracers == null ? 0 : tracers.length;
+        Tracer[] out = new Tracer[n + 1];
+        if (n > 0)
+            System.arraycopy(tracers, 0, out, 0, n);
+        out[n] = tracer;
+        tracers = out;
+    }
+
+    void removeTracer(Tracer tracer) {
+        if (tracers == null)
+            return;
+        Tracer[] out = new Tracer[tracers.length];
+        int n = 0;
+        for (Tracer t : tracers) {
+            if (t != tracer)
+                out[n++] = t;
+        }
+        tracers = n == 0 ? null : Arrays.copyOf(out, n);
+    }
+
+    Engine getEngine() {
+        return engine;
+    }
+
+    void setEngine(Engine engine) {
+        this.engine = engine;
+        this.blockEngine = null;
+    }
+
+    Program getProgram() {
+        return program;
+    }
+
+    int getProgramLength() {
+        return program.length();
+    }
+
+    int getInstruction(int index) {
+        return program.words[index];
+    }
+
+    static String getRegisterName(int n) {
+        if (n == 0)
+            return "$0";
+        else if (n == 1)
+            return "$at";
+        else if (n <= 3)
+            return "$v" + String.valueOf(n - 2);
+        else if (n <= 7)
+            return "$a" + String.valueOf(n - 4);
+        else if (n <= 15)
+            return "$t" + String.valueOf(n - 8);
+        else if (n <= 23)
+            return "$s" + String.valueOf(n - 16);
+        else if (n <= 25)
+            return "$t" + String.valueOf(n - 16);
+        else if (n <= 27)
+            return "$k" + String.valueOf(n - 26);
+        else if (n == 28)
+            return "$gp";
+        else if (n == 29)
+            return "$sp";
+        else if (n == 30)
+            return "$fp";
+        return "$ra";
+    }
+
+    int getRegister(int n) {
+        return registers[n];
+    }
+
+    void setRegister(int n, int value) {
+        if (n != 0)
+            registers[n] = value;
+    }
+
+    Memory getMemory() {
+        return memory;
+    }
+
+    /*
+     * Runs until the program ends or maxSteps instructions were executed
+     * The threaded and JIT engines may run past maxSteps up to the end of a block
+     * and are bypassed while a journal records history, breakpoints are set or
+     * a tracer is attached
+     * A breakpoint or watchpoint ends the run early with isStopped set
+     * Returns the number of executed instructions
+     */
+    long run(long maxSteps) {
+        final Metrics timed = metrics;
+        if (timed == null)
+            return runSteps(maxSteps);
+        final long start = System.nanoTime();
+        try {
+            return runSteps(maxSteps);
+        } finally {
+            timed.runNanos += System.nanoTime() - start;
+        }
+    }
+
+    private long runSteps(long maxSteps) {
+        stopped = false;
+        if (engine != Engine.INTERPRETER && journal == null && breakpoints == null && tracers == null) {
+            if (blockEngine == null)
+                blockEngine = new BlockEngine(this, engine == Engine.JIT);
+            return blockEngine.run(maxSteps);
+        }
+        final long start = steps;
+        for (long n = 0; n < maxSteps && !isHalted() && !stopped; ++n)
+            execute();
+        return steps - start;
+    }
+
+    void step() {
+        final Metrics timed = metrics;
+        if (timed == null) {
+            execute();
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            execute();
+        } finally {
+            timed.runNanos += System.nanoTime() - start;
+        }
+    }
+
+    private void execute() {
+        final int[] r = registers;
+        final Program p = program;
+        final int i = pc;
+        int opcode = p.opcode[i];
+        if (opcode == Breakpoints.TRAP) {
+            opcode = breakpoints.original(i);
+            if (breakpoints.trap(this, i)) {
+                stopped = true;
+                return;
+            }
+        }
+        if (journal != null)
+            journal.record(this, i, opcode);
+        final int rs = p.rs[i];
+        final int rt = p.rt[i];
+        int next = i + 1;
+        int address = 0;
+        boolean taken = false;
+        switch (opcode) {
+        case 0: {
+            final int rd = p.rd[i];
+            switch (p.funct[i]) {
+            case 32: // ADD
+                r[rd] = r[rs] + r[rt];
+                break;
+            case 34: // SUB
+                r[rd] = r[rs] - r[rt];
+                break;
+            case 36: // AND
+                r[rd] = r[rs] & r[rt];
+                break;
+            case 37: // OR
+                r[rd] = r[rs] | r[rt];
+                break;
+            case 42: // SLT
+                r[rd] = r[rs] < r[rt] ? 1 : 0;
+                break;
+            case 0: // SLL
+                r[rd] = r[rs] << p.shamt[i];
+                break;
+            case 8: // JR
+                next = r[rs];
+                break;
+            }
+            break;
+        }
+        case 35: // LW
+            address = r[rs] + p.immediate[i];
+            r[rt] = memory.loadWord(address);
+            break;
+        case 43: // SW
+            address = r[rs] + p.immediate[i];
+            memory.storeWord(address, r[rt]);
+            break;
+        case 8: // ADDI
+            r[rt] = r[rs] + p.immediate[i];
+            break;
+        case 12: // ANDI
+            r[rt] = r[rs] & p.immediate[i];
+            break;
+        case 13: // ORI
+            r[rt] = r[rs] | p.immediate[i];
+            break;
+        case 10: // SLTI
+            r[rt] = r[rs] < p.immediate[i] ? 1 : 0;
+            break;
+        case 15: // LUI, the assembler places the destination in the rs field
+            r[rs] = p.immediate[i] << 16;
+            break;
+        case 2: // J
+            next = p.target[i];
+            break;
+        case 4: // BEQ
+            if (r[rs] == r[rt]) {
+                next = p.immediate[i] & 0xFFFF;
+                taken = true;
+            }
+            break;
+        case 5: // BNE
+            if (r[rs] != r[rt]) {
+                next = p.immediate[i] & 0xFFFF;
+                taken = true;
+            }
+            break;
+        }
+        if (metrics != null)
+            metrics.record(opcode, p.funct[i], taken);
+        if (profiler != null)
+            profiler.record(i, opcode == 4 || opcode == 5, taken);
+        if (tracers != null) {
+            for (Tracer tracer : tracers)
+                tracer.trace(i, opcode, address, taken, next);
+        }
+        // $0 is hardwired to zero
+        r[0] = 0;
+        pc = next;
+        ++steps;
+        if (breakpoints != null && breakpoints.afterStep(this))
+            stopped = true;
+    }
+
+}
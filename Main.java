@@ -1,8 +1,32 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 
 class Main{
-    public static void main(String[] args){
+    public static void main(String[] args) throws Exception{
+        // Headless assembly: --assemble SOURCE OUTPUT
+        if(args.length == 3 && args[0].equals("--assemble")){
+            new Assembler().assembleFile(Paths.get(args[1]), Paths.get(args[2]));
+            return;
+        }
+        // Headless multi-file build: --build OUTPUT SOURCE...
+        if(args.length > 2 && args[0].equals("--build")){
+            List<Path> sources = new ArrayList<>();
+            for(int i = 2; i < args.length; ++i)
+                sources.add(Paths.get(args[i]));
+            Linker.Result result = Linker.build(sources, Paths.get(args[1]));
+            System.err.println(result.files + " files, " + result.assembled + " assembled, " + result.words + " words");
+            return;
+        }
+        // Headless parallel runs, see BatchRunner for the options
+        if(args.length > 0 && args[0].equals("--batch")){
+            BatchRunner.main(args);
+            return;
+        }
         IDE ide = new IDE();
         Simulator s = new Simulator();
+        s.setIDE(ide);
     }
 }
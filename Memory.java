@@ -0,0 +1,156 @@
+import java.util.Arrays;
+
+/*
+ * Sparse 32-bit byte addressed memory
+ * The address space is split into 4 KiB pages of int words behind a two
+ * level page table, pages are only allocated on their first write
+ * The last page used is cached so sequential LW/SW skip the table walk
+ * Watched pages are never cached, so only accesses to them reach the watcher
+ *
+ * Layout:
+ * 0x00400000 text (held by Program, the program counter is a word index into it)
+ * 0x10010000 static data
+ * 0x10008000 global pointer
+ * 0x7ffffffc stack pointer, growing down
+ */
+class Memory {
+
+    interface Watcher {
+        void accessed(int address, boolean store, int value);
+    }
+
+    static final int TEXT_BASE = 0x00400000;
+    static final int DATA_BASE = 0x10010000;
+    static final int GLOBAL_POINTER = 0x10008000;
+    static final int STACK_POINTER = 0x7FFFFFFC;
+
+    static final int PAGE_BITS = 12;
+    static final int PAGE_WORDS = 1 << (PAGE_BITS - 2);
+    private static final int TABLE_BITS = 10;
+    private static final int TABLE_MASK = (1 << TABLE_BITS) - 1;
+
+    private final int[][][] directory = new int[1 << TABLE_BITS][][];
+    private int[] pageNumbers = new int[16];
+    private int pageCount;
+    private int pageChanges; // bumped whenever the set of allocated pages changes
+    private int cachedNumber = -1;
+    private int[] cachedPage;
+    private long[] watchedPages; // one bit per page number, null when nothing is watched
+    private Watcher watcher;
+
+    int loadWord(int address) {
+        if ((address & 3) != 0)
+            throw new RuntimeException("Unaligned memory access at 0x" + Integer.toHexString(address));
+        final int number = address >>> PAGE_BITS;
+        if (number == cachedNumber)
+            return cachedPage[(address >>> 2) & (PAGE_WORDS - 1)];
+        final int[] page = findPage(number, false);
+        final int value = page == null ? 0 : page[(address >>> 2) & (PAGE_WORDS - 1)];
+        if (watchedPages != null && isWatched(number))
+            watcher.accessed(address, false, value);
+        return value;
+    }
+
+    void storeWord(int address, int value) {
+        if ((address & 3) != 0)
+            throw new RuntimeException("Unaligned memory access at 0x" + Integer.toHexString(address));
+        final int number = address >>> PAGE_BITS;
+        if (number == cachedNumber) {
+            cachedPage[(address >>> 2) & (PAGE_WORDS - 1)] = value;
+            return;
+        }
+        findPage(number, true)[(address >>> 2) & (PAGE_WORDS - 1)] = value;
+        if (watchedPages != null && isWatched(number))
+            watcher.accessed(address, true, value);
+    }
+
+    // Access for tools such as the journal, never reported to the watcher
+    int peekWord(int address) {
+        final int[] page = getPage(address >>> PAGE_BITS);
+        return page == null ? 0 : page[(address >>> 2) & (PAGE_WORDS - 1)];
+    }
+
+    void pokeWord(int address, int value) {
+        findPage(address >>> PAGE_BITS, true)[(address >>> 2) & (PAGE_WORDS - 1)] = value;
+    }
+
+    private int[] findPage(int number, boolean allocate) {
+        int[][] table = directory[number >>> TABLE_BITS];
+        if (table == null) {
+            if (!allocate)
+                return null;
+            table = new int[1 << TABLE_BITS][];
+            directory[number >>> TABLE_BITS] = table;
+        }
+        int[] page = table[number & TABLE_MASK];
+        if (page == null) {
+            if (!allocate)
+                return null;
+            page = new int[PAGE_WORDS];
+            table[number & TABLE_MASK] = page;
+            if (pageCount == pageNumbers.length)
+                pageNumbers = Arrays.copyOf(pageNumbers, pageCount * 2);
+            pageNumbers[pageCount++] = number;
+            ++pageChanges;
+        }
+        if (watchedPages == null || !isWatched(number)) {
+            cachedNumber = number;
+            cachedPage = page;
+        }
+        return page;
+    }
+
+    void watchPage(int number, Watcher watcher) {
+        if (watchedPages == null)
+            watchedPages = new long[1 << (32 - PAGE_BITS - 6)];
+        watchedPages[number >>> 6] |= 1L << number;
+        this.watcher = watcher;
+        if (number == cachedNumber)
+            cachedNumber = -1;
+    }
+
+    void unwatchPages() {
+        watchedPages = null;
+        watcher = null;
+    }
+
+    private boolean isWatched(int number) {
+        return (watchedPages[number >>> 6] & (1L << number)) != 0;
+    }
+
+    // Page numbers (address >>> PAGE_BITS) of allocated pages in ascending order
+    int[] getPageNumbers() {
+        int[] out = Arrays.copyOf(pageNumbers, pageCount);
+        Arrays.sort(out);
+        return out;
+    }
+
+    // Returns the words of a page, allocating it if needed
+    int[] allocatePage(int number) {
+        return findPage(number, true);
+    }
+
+    int getPageCount() {
+        return pageCount;
+    }
+
+    // Differs from an earlier value whenever pages were allocated or cleared since
+    int getPageChanges() {
+        return pageChanges;
+    }
+
+    // Returns the words of an allocated page or null
+    int[] getPage(int number) {
+        final int[][] table = directory[number >>> TABLE_BITS];
+        return table == null ? null : table[number & TABLE_MASK];
+    }
+
+    void clear() {
+        Arrays.fill(directory, null);
+        pageCount = 0;
+        ++pageChanges;
+        cachedNumber = -1;
+        cachedPage = null;
+    }
+
+}
@@ -0,0 +1,195 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/*
+ * Execution counters of a Machine
+ * Instructions are counted per opcode, R type instructions per function
+ * code, next to memory reads/writes and taken/not-taken branches, and
+ * the hot blocks the JIT left to threaded code
+ * The instruction rate is taken over the time spent in Machine.run and
+ * step, a machine waiting for the user or a paused batch does not lower it
+ * Counters are plain longs written by the executing thread only, readers
+ * on other threads (JMX, the dump timer) may see slightly stale values
+ */
+class Metrics implements MetricsMBean {
+
+    // counts[opcode] for I and J types, counts[64 + funct] for R types
+    static final int KINDS = 128;
+
+    final long[] counts = new long[KINDS];
+    long memoryReads;
+    long memoryWrites;
+    long branchesTaken;
+    long branchesNotTaken;
+    long jitFallbacks;
+    long runNanos; // summed over the merged machines, so merged rates are per thread
+
+    static int kind(int opcode, int funct) {
+        return opcode == 0 ? 64 + funct : opcode;
+    }
+
+    void record(int opcode, int funct, boolean taken) {
+        ++counts[kind(opcode, funct)];
+        if (opcode == 35) {
+            ++memoryReads;
+        } else if (opcode == 43) {
+            ++memoryWrites;
+        } else if (opcode == 4 || opcode == 5) {
+            if (taken)
+                ++branchesTaken;
+            else
+                ++branchesNotTaken;
+        }
+    }
+
+    // Counts a whole basic block at once
+    void recordBlock(int[] kinds, int reads, int writes, boolean branch, boolean taken) {
+        for (int kind : kinds)
+            ++counts[kind];
+        memoryReads += reads;
+        memoryWrites += writes;
+        if (branch) {
+            if (taken)
+                ++branchesTaken;
+            else
+                ++branchesNotTaken;
+        }
+    }
+
+    // Adds the counters of other, used to fold finished runs into a total
+    synchronized void merge(Metrics other) {
+        for (int i = 0; i < KINDS; ++i)
+            counts[i] += other.counts[i];
+        memoryReads += other.memoryReads;
+        memoryWrites += other.memoryWrites;
+        branchesTaken += other.branchesTaken;
+        branchesNotTaken += other.branchesNotTaken;
+        jitFallbacks += other.jitFallbacks;
+        runNanos += other.runNanos;
+    }
+
+    @Override
+    public long getInstructions() {
+        long total = 0;
+        for (long count : counts)
+            total += count;
+        return total;
+    }
+
+    @Override
+    public double getInstructionsPerSecond() {
+        return getInstructions() * 1e9 / Math.max(1, runNanos);
+    }
+
+    @Override
+    public long getMemoryReads() {
+        return memoryReads;
+    }
+
+    @Override
+    public long getMemoryWrites() {
+        return memoryWrites;
+    }
+
+    @Override
+    public long getBranchesTaken() {
+        return branchesTaken;
+    }
+
+    @Override
+    public long getBranchesNotTaken() {
+        return branchesNotTaken;
+    }
+
+    @Override
+    public long getJitFallbacks() {
+        return jitFallbacks;
+    }
+
+    @Override
+    public long[] getInstructionCounts() {
+        return counts.clone();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < KINDS; ++i)
+            counts[i] = 0;
+        memoryReads = 0;
+        memoryWrites = 0;
+        branchesTaken = 0;
+        branchesNotTaken = 0;
+        jitFallbacks = 0;
+        runNanos = 0;
+    }
+
+    static String kindName(int kind) {
+        switch (kind) {
+        case 64 + 32: return "add";
+        case 64 + 34: return "sub";
+        case 64 + 36: return "and";
+        case 64 + 37: return "or";
+        case 64 + 42: return "slt";
+        case 64 + 0: return "sll";
+        case 64 + 8: return "jr";
+        case 35: return "lw";
+        case 43: return "sw";
+        case 8: return "addi";
+        case 12: return "andi";
+        case 13: return "ori";
+        case 10: return "slti";
+        case 15: return "lui";
+        case 2: return "j";
+        case 4: return "beq";
+        case 5: return "bne";
+        }
+        return kind >= 64 ? "fn" + (kind - 64) : "op" + kind;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("instructions %d (%.0f/s), reads %d, writes %d, branches taken %d, not taken %d%n",
+                getInstructions(), getInstructionsPerSecond(), memoryReads, memoryWrites, branchesTaken,
+                branchesNotTaken));
+        if (jitFallbacks != 0)
+            sb.append(String.format("  hot blocks left to threaded code %d%n", jitFallbacks));
+        for (int kind = 0; kind < KINDS; ++kind) {
+            if (counts[kind] != 0)
+                sb.append(String.format("  %-6s %d%n", kindName(kind), counts[kind]));
+        }
+        return sb.toString();
+    }
+
+    // Registers this object with the platform MBean server as mips32:type=Metrics,name=NAME
+    void register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("mips32:type=Metrics,name=" + ObjectName.quote(name));
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName))
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, MetricsMBean.class),
+                    objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Prints the report every period seconds on a daemon thread
+    ScheduledExecutorService startDump(long period, PrintStream out) {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "mips-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(() -> out.print(getReport()), period, period, TimeUnit.SECONDS);
+        return timer;
+    }
+
+}
@@ -0,0 +1,27 @@
+/*
+ * Management interface of Metrics, see there
+ * Standard MBean interfaces have to be public
+ */
+public interface MetricsMBean {
+
+    long getInstructions();
+
+    double getInstructionsPerSecond();
+
+    long getMemoryReads();
+
+    long getMemoryWrites();
+
+    long getBranchesTaken();
+
+    long getBranchesNotTaken();
+
+    long getJitFallbacks();
+
+    long[] getInstructionCounts();
+
+    String getReport();
+
+    void reset();
+
+}
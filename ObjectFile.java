@@ -0,0 +1,420 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Versioned object file with text and data sections, symbols and lines
+ * Every section sits at an offset given in a fixed 64 byte header, so a
+ * mapped file answers lookups without being parsed, big-endian throughout:
+ *
+ *   0 int magic, short version, short flags
+ *   8 int text offset, int text words
+ *  16 int data offset, int data words, int data address
+ *  28 int symbol offset, int symbol slots, int symbol count
+ *  40 int string offset, int string bytes
+ *  48 int line offset, int line count (0 without a line table)
+ *  56 int relocation offset, int relocation count
+ *
+ * Symbols form an open addressing hash table of power of two slots, each
+ * int hash, int name offset, short name length, byte section, byte 0,
+ * int value, hash 0 marks a free slot
+ * Names are UTF-8 in the string table, text symbols are instruction
+ * indices and data symbols addresses, the line table has one int per
+ * text word
+ *
+ * Relocatable objects, flagged as such, are assembled as if loaded at
+ * instruction 0 and list every J/BEQ/BNE as int pc, int symbol slot so the
+ * Linker can patch the target field, labels of other files are UNDEFINED
+ * symbols
+ * The magic decodes to opcode 19, which no instruction uses, so a raw
+ * stream of words is never mistaken for an object file
+ */
+class ObjectFile {
+
+    static final int MAGIC = 0x4D49504F; // MIPO
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int SLOT_SIZE = 16;
+    static final int FLAG_LINES = 1;
+    static final int FLAG_RELOCATABLE = 2;
+    static final int RELOCATION_SIZE = 8;
+    static final int TEXT = 0;
+    static final int DATA = 1;
+    static final int UNDEFINED = 2;
+
+    private final ByteBuffer buffer;
+    private final int textOffset;
+    final int textWords;
+    private final int dataOffset;
+    private final int dataWords;
+    final int dataAddress;
+    private final int symbolOffset;
+    private final int symbolMask;
+    final int symbolCount;
+    private final int stringOffset;
+    private final int lineOffset;
+    private final int lineCount;
+    private final boolean relocatable;
+    private final int relocationOffset;
+    private final int relocationCount;
+    private String[] labelNames; // text symbols sorted by address, built on first use
+    private int[] labelPCs;
+
+    private ObjectFile(ByteBuffer buffer, Path path) throws IOException {
+        this.buffer = buffer;
+        textOffset = buffer.getInt(8);
+        textWords = buffer.getInt(12);
+        dataOffset = buffer.getInt(16);
+        dataWords = buffer.getInt(20);
+        dataAddress = buffer.getInt(24);
+        symbolOffset = buffer.getInt(28);
+        final int slots = buffer.getInt(32);
+        symbolCount = buffer.getInt(36);
+        stringOffset = buffer.getInt(40);
+        final int stringBytes = buffer.getInt(44);
+        lineOffset = buffer.getInt(48);
+        lineCount = (buffer.getShort(6) & FLAG_LINES) != 0 ? buffer.getInt(52) : 0;
+        relocatable = (buffer.getShort(6) & FLAG_RELOCATABLE) != 0;
+        relocationOffset = buffer.getInt(56);
+        relocationCount = relocatable ? buffer.getInt(60) : 0;
+        symbolMask = slots - 1;
+        if (!fits(textOffset, textWords, 4) || !fits(dataOffset, dataWords, 4) || !fits(symbolOffset, slots, SLOT_SIZE)
+                || !fits(stringOffset, stringBytes, 1) || !fits(lineOffset, lineCount, 4)
+                || (slots != 0 && Integer.bitCount(slots) != 1) || symbolCount > slots
+                || (lineCount != 0 && lineCount != textWords)
+                || (relocationCount != 0 && !fits(relocationOffset, relocationCount, RELOCATION_SIZE)))
+            throw new IOException(path.getFileName() + " is a damaged object file");
+    }
+
+    private boolean fits(int offset, int count, int size) {
+        return offset >= HEADER_SIZE && count >= 0 && (long) offset + (long) count * size <= buffer.capacity();
+    }
+
+    /*
+     * Maps an object file, returns null when the file does not start with
+     * the magic number so callers can fall back to a raw word stream
+     */
+    static ObjectFile map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < HEADER_SIZE)
+                return null;
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Object file is too large");
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC)
+                return null;
+            if (buffer.getShort(4) != VERSION)
+                throw new IOException(path.getFileName() + " has object format version " + buffer.getShort(4)
+                        + ", expected " + VERSION);
+            return new ObjectFile(buffer, path);
+        }
+    }
+
+    int[] text() {
+        return words(textOffset, textWords);
+    }
+
+    int[] data() {
+        return words(dataOffset, dataWords);
+    }
+
+    private int[] words(int offset, int count) {
+        final int[] words = new int[count];
+        buffer.duplicate().position(offset).asIntBuffer().get(words);
+        return words;
+    }
+
+    boolean hasLines() {
+        return lineCount > 0;
+    }
+
+    // Source line of an instruction, pc + 1 without a line table and 0 outside the text
+    int lineOf(int pc) {
+        if (pc < 0 || pc >= textWords)
+            return 0;
+        return lineCount == 0 ? pc + 1 : buffer.getInt(lineOffset + pc * 4);
+    }
+
+    // Value of a symbol, or -1 when there is none by that name
+    int symbol(String name) {
+        final int slot = find(name.getBytes(StandardCharsets.UTF_8));
+        return slot < 0 ? -1 : buffer.getInt(slot + 12);
+    }
+
+    // TEXT, DATA or UNDEFINED, -1 when there is no symbol by that name
+    int section(String name) {
+        final int slot = find(name.getBytes(StandardCharsets.UTF_8));
+        return slot < 0 ? -1 : buffer.get(slot + 10);
+    }
+
+    // Offset of the slot holding name, -1 if missing
+    private int find(byte[] name) {
+        if (symbolCount == 0)
+            return -1;
+        final int hash = hash(name);
+        // A damaged table may have no free slot, so give up after one round
+        for (int probe = 0, i = hash & symbolMask; probe <= symbolMask; ++probe, i = (i + 1) & symbolMask) {
+            final int slot = symbolOffset + i * SLOT_SIZE;
+            final int h = buffer.getInt(slot);
+            if (h == 0)
+                return -1;
+            if (h == hash && buffer.getShort(slot + 8) == name.length && equals(buffer.getInt(slot + 4), name))
+                return slot;
+        }
+        return -1;
+    }
+
+    private boolean equals(int offset, byte[] name) {
+        for (int i = 0; i < name.length; ++i) {
+            if (buffer.get(stringOffset + offset + i) != name[i])
+                return false;
+        }
+        return true;
+    }
+
+    // Text symbols in address order, read from the table on first use
+    String[] labelNames() {
+        if (labelNames == null)
+            readLabels();
+        return labelNames;
+    }
+
+    int[] labelPCs() {
+        if (labelPCs == null)
+            readLabels();
+        return labelPCs;
+    }
+
+    private void readLabels() {
+        final long[] keys = new long[symbolCount];
+        final String[] names = new String[symbolCount];
+        int n = 0;
+        for (int i = 0; i <= symbolMask && symbolCount > 0; ++i) {
+            final int slot = symbolOffset + i * SLOT_SIZE;
+            if (buffer.getInt(slot) == 0 || buffer.get(slot + 10) != TEXT)
+                continue;
+            names[n] = name(slot);
+            keys[n] = (long) buffer.getInt(slot + 12) << 32 | n;
+            ++n;
+        }
+        Arrays.sort(keys, 0, n);
+        labelNames = new String[n];
+        labelPCs = new int[n];
+        for (int i = 0; i < n; ++i) {
+            labelNames[i] = names[(int) keys[i]];
+            labelPCs[i] = (int) (keys[i] >>> 32);
+        }
+    }
+
+    private String name(int slot) {
+        final byte[] name = new byte[buffer.getShort(slot + 8)];
+        buffer.duplicate().position(stringOffset + buffer.getInt(slot + 4)).get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    boolean isRelocatable() {
+        return relocatable;
+    }
+
+    // Labels this object uses but leaves to other objects
+    List<String> undefinedSymbols() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i <= symbolMask && symbolCount > 0; ++i) {
+            final int slot = symbolOffset + i * SLOT_SIZE;
+            if (buffer.getInt(slot) != 0 && buffer.get(slot + 10) == UNDEFINED)
+                names.add(name(slot));
+        }
+        return names;
+    }
+
+    int relocationCount() {
+        return relocationCount;
+    }
+
+    // Instruction whose target field the relocation patches
+    int relocationPC(int i) {
+        return buffer.getInt(relocationOffset + i * RELOCATION_SIZE);
+    }
+
+    // Symbol the patched field refers to
+    String relocationSymbol(int i) throws IOException {
+        final int index = buffer.getInt(relocationOffset + i * RELOCATION_SIZE + 4);
+        if (index < 0 || index > symbolMask || buffer.getInt(symbolOffset + index * SLOT_SIZE) == 0)
+            throw new IOException("Relocation " + i + " refers to a missing symbol");
+        return name(symbolOffset + index * SLOT_SIZE);
+    }
+
+    // 32-bit FNV-1a, never 0 since 0 marks a free slot
+    static int hash(byte[] name) {
+        int h = 0x811C9DC5;
+        for (byte b : name)
+            h = (h ^ (b & 0xFF)) * 0x01000193;
+        return h == 0 ? 1 : h;
+    }
+
+    /*
+     * Streams an object into a file channel
+     * Sizes and symbols are known up front, after the first assembler
+     * pass, so every section offset is fixed before the first word and the
+     * text and line table are written side by side at their own positions
+     * The header goes in last, an interrupted write leaves no valid object
+     * With a collection of undefined symbols, empty or not, the object is
+     * relocatable and takes relocations after its line table
+     */
+    static final class Writer {
+
+        private static final int BUFFER = 64 * 1024;
+
+        private final FileChannel out;
+        private final int textWords;
+        private final int lineOffset;
+        private final long relocationOffset;
+        private final Map<String, Integer> slotOf; // null unless relocatable
+        private final ByteBuffer text = ByteBuffer.allocateDirect(BUFFER);
+        private final ByteBuffer lines;
+        private final ByteBuffer relocations;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private long textPosition = HEADER_SIZE;
+        private long linePosition;
+        private long relocationPosition;
+        private int written;
+        private int relocationCount;
+
+        Writer(FileChannel out, int textWords, int[] data, int dataAddress, Map<String, Integer> textSymbols,
+                Map<String, Integer> dataSymbols, Collection<String> undefined, boolean withLines) throws IOException {
+            this.out = out;
+            this.textWords = textWords;
+            final boolean relocatable = undefined != null;
+            final int count = textSymbols.size() + dataSymbols.size() + (relocatable ? undefined.size() : 0);
+            int slots = count == 0 ? 0 : Integer.highestOneBit(count) << 1;
+            if (slots < count * 2)
+                slots <<= 1;
+            // Header offsets are ints, check in long before computing them
+            if (HEADER_SIZE + textWords * 4L + data.length * 4L + (long) slots * SLOT_SIZE > Integer.MAX_VALUE)
+                throw new IOException("Object file would be larger than 2 GB");
+            final int dataOffset = HEADER_SIZE + textWords * 4;
+            final int symbolOffset = dataOffset + data.length * 4;
+            final int stringOffset = symbolOffset + slots * SLOT_SIZE;
+
+            // Symbol slots and the string table
+            final ByteBuffer table = ByteBuffer.allocate(slots * SLOT_SIZE);
+            final ByteArrayOutputStream strings = new ByteArrayOutputStream();
+            final Map<String, Integer> undefinedSymbols = new HashMap<>();
+            if (relocatable) {
+                for (String name : undefined)
+                    undefinedSymbols.put(name, 0);
+            }
+            slotOf = relocatable ? new HashMap<>() : null;
+            for (int section = TEXT; section <= UNDEFINED; ++section) {
+                final Map<String, Integer> symbols = section == TEXT ? textSymbols
+                        : section == DATA ? dataSymbols : undefinedSymbols;
+                for (Map.Entry<String, Integer> symbol : symbols.entrySet()) {
+                    final byte[] name = symbol.getKey().getBytes(StandardCharsets.UTF_8);
+                    if (name.length > Short.MAX_VALUE)
+                        throw new IOException("Symbol name too long: " + symbol.getKey().substring(0, 40) + "...");
+                    final int hash = hash(name);
+                    int i = hash & (slots - 1);
+                    while (table.getInt(i * SLOT_SIZE) != 0)
+                        i = (i + 1) & (slots - 1);
+                    final int slot = i * SLOT_SIZE;
+                    table.putInt(slot, hash);
+                    table.putInt(slot + 4, strings.size());
+                    table.putShort(slot + 8, (short) name.length);
+                    table.put(slot + 10, (byte) section);
+                    table.putInt(slot + 12, symbol.getValue());
+                    strings.write(name, 0, name.length);
+                    if (slotOf != null)
+                        slotOf.put(symbol.getKey(), i);
+                }
+            }
+            final long lineStart = (long) stringOffset + strings.size();
+            if (lineStart + (withLines ? textWords * 4L : 0) > Integer.MAX_VALUE)
+                throw new IOException("Object file would be larger than 2 GB");
+            this.lineOffset = (int) lineStart;
+            this.linePosition = lineOffset;
+            this.lines = withLines ? ByteBuffer.allocateDirect(BUFFER) : null;
+            this.relocationOffset = lineStart + (withLines ? textWords * 4L : 0);
+            this.relocationPosition = relocationOffset;
+            this.relocations = relocatable ? ByteBuffer.allocateDirect(BUFFER) : null;
+
+            final ByteBuffer words = ByteBuffer.allocate(data.length * 4);
+            words.asIntBuffer().put(data);
+            writeAt(words, dataOffset);
+            table.clear();
+            writeAt(table, symbolOffset);
+            writeAt(ByteBuffer.wrap(strings.toByteArray()), stringOffset);
+
+            header.putInt(MAGIC).putShort((short) VERSION)
+                    .putShort((short) ((withLines ? FLAG_LINES : 0) | (relocatable ? FLAG_RELOCATABLE : 0)));
+            header.putInt(HEADER_SIZE).putInt(textWords);
+            header.putInt(dataOffset).putInt(data.length).putInt(dataAddress);
+            header.putInt(symbolOffset).putInt(slots).putInt(count);
+            header.putInt(stringOffset).putInt(strings.size());
+            header.putInt(lineOffset).putInt(withLines ? textWords : 0);
+            header.putInt((int) relocationOffset).putInt(0);
+            header.clear();
+        }
+
+        // Adds the next text word and the source line it came from
+        void word(int word, int line) throws IOException {
+            if (!text.hasRemaining())
+                textPosition = flush(text, textPosition);
+            text.putInt(word);
+            if (lines != null) {
+                if (!lines.hasRemaining())
+                    linePosition = flush(lines, linePosition);
+                lines.putInt(line);
+            }
+            ++written;
+        }
+
+        // Marks the word at pc as referring to symbol, relocatable objects only
+        void relocate(int pc, String symbol) throws IOException {
+            if (relocationPosition + RELOCATION_SIZE > Integer.MAX_VALUE)
+                throw new IOException("Object file would be larger than 2 GB");
+            if (!relocations.hasRemaining())
+                relocationPosition = flush(relocations, relocationPosition);
+            relocations.putInt(pc).putInt(slotOf.get(symbol));
+            ++relocationCount;
+        }
+
+        void finish() throws IOException {
+            if (written != textWords)
+                throw new IOException("Object has " + written + " words, " + textWords + " were announced");
+            flush(text, textPosition);
+            if (lines != null)
+                flush(lines, linePosition);
+            if (relocations != null)
+                flush(relocations, relocationPosition);
+            out.truncate(relocationOffset + (long) relocationCount * RELOCATION_SIZE);
+            header.putInt(60, relocationCount);
+            writeAt(header, 0);
+        }
+
+        private long flush(ByteBuffer buffer, long position) throws IOException {
+            buffer.flip();
+            position = writeAt(buffer, position);
+            buffer.clear();
+            return position;
+        }
+
+        private long writeAt(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining())
+                position += out.write(buffer, position);
+            return position;
+        }
+
+    }
+
+}
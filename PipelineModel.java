@@ -0,0 +1,311 @@
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Timing of the classic IF/ID/EX/MEM/WB pipeline traced alongside execution
+ * Instead of moving instructions through stage objects it keeps the cycle
+ * each instruction spends in ID and, per register, the cycle its value can
+ * be used, which is enough to count stalls exactly for an in-order pipeline
+ *
+ * With forwarding ALU results reach EX of the next instruction and loads
+ * one cycle later (the load-use stall), store data is forwarded into MEM
+ * Without forwarding every consumer waits for the write-back, the register
+ * file is written in the first half of a cycle and read in the second
+ * BEQ/BNE resolve in ID or EX and cost 1 or 2 bubbles when taken, or with a
+ * BranchPredictor only when mispredicted, J and JR resolve in ID and cost 1
+ *
+ * Text form, one option per line, # starts a comment:
+ * forwarding on|off
+ * branch id|ex
+ * predictor taken|nottaken|1bit|2bit|gshare [ENTRIES] [history BITS]
+ */
+class PipelineModel implements Machine.Tracer {
+
+    // Stage a source operand is needed in, relative to ID
+    private static final int USE_ID = 0;
+    private static final int USE_EX = 1;
+    private static final int USE_MEM = 2;
+
+    // Fields of a decoded instruction, packed so one array load serves each trace
+    private static final int SOURCE2 = 5;
+    private static final int USE1 = 10;
+    private static final int USE2 = 12;
+    private static final int DESTINATION = 14;
+    private static final int LATENCY = 19;
+    private static final int LOAD_BIT = 21;
+    private static final int LOAD = 1 << LOAD_BIT;
+    private static final int JUMP = 1 << 22;
+    private static final int BRANCH = 1 << 23;
+
+    final boolean forwarding;
+    final boolean branchInEx;
+    final BranchPredictor predictor; // null predicts not taken
+
+    // Decoded once from the raw words, so patched opcodes do not matter
+    private final int[] decoded;
+
+    // Per register the ID cycle its value can be used by, shifted left, low bit set for loads
+    private final long[] ready = new long[Machine.REGISTER_COUNT];
+    private long id; // ID cycle of the last instruction
+    private long nextId; // earliest ID cycle of the next one, after control bubbles
+
+    private final long[] executions;
+    private final long[] loadUseStalls;
+    private final long[] dataStalls;
+    private final long[] controlStalls;
+    private long loadUseTotal;
+    private long dataTotal;
+    private long branchTotal;
+    private long jumpTotal;
+
+    PipelineModel(Program program, boolean forwarding, boolean branchInEx, BranchPredictor predictor) {
+        this.forwarding = forwarding;
+        this.branchInEx = branchInEx;
+        this.predictor = predictor;
+        final int n = program.length();
+        decoded = new int[n];
+        executions = new long[n];
+        loadUseStalls = new long[n];
+        dataStalls = new long[n];
+        controlStalls = new long[n];
+        for (int pc = 0; pc < n; ++pc)
+            decoded[pc] = decode(program.words[pc]);
+        reset();
+    }
+
+    private int decode(int word) {
+        final int opcode = word >>> 26;
+        final int rs = (word >>> 21) & 0x1F;
+        final int rt = (word >>> 16) & 0x1F;
+        final int rd = (word >>> 11) & 0x1F;
+        int source1 = rs;
+        int source2 = 0;
+        int use1 = USE_EX;
+        int use2 = USE_EX;
+        int destination = 0;
+        int flags = 0;
+        switch (opcode) {
+        case 0:
+            if ((word & 0x3F) == 8) { // JR
+                use1 = USE_ID;
+                flags = JUMP;
+            } else if ((word & 0x3F) == 0) { // SLL, source in rs
+                destination = rd;
+            } else {
+                source2 = rt;
+                destination = rd;
+            }
+            break;
+        case 35: // LW
+            destination = rt;
+            flags = LOAD;
+            break;
+        case 43: // SW, the data is only needed in MEM
+            source2 = rt;
+            use2 = USE_MEM;
+            break;
+        case 4:
+        case 5:
+            source2 = rt;
+            use1 = use2 = branchInEx ? USE_EX : USE_ID;
+            flags = BRANCH;
+            break;
+        case 2:
+            source1 = 0;
+            flags = JUMP;
+            break;
+        case 15: // LUI, destination in rs
+            source1 = 0;
+            destination = rs;
+            break;
+        default:
+            destination = rt;
+            break;
+        }
+        // Without forwarding every operand comes from the register file in ID
+        if (!forwarding)
+            use1 = use2 = USE_ID;
+        // Cycles after its ID at which the result can be used, expressed as an ID cycle
+        final int latency = forwarding && flags != LOAD ? 2 : 3;
+        return source1 | source2 << SOURCE2 | use1 << USE1 | use2 << USE2 | destination << DESTINATION
+                | latency << LATENCY | flags;
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(ready, 0);
+        id = 0;
+        nextId = 1;
+        Arrays.fill(executions, 0);
+        Arrays.fill(loadUseStalls, 0);
+        Arrays.fill(dataStalls, 0);
+        Arrays.fill(controlStalls, 0);
+        if (predictor != null)
+            predictor.reset();
+        loadUseTotal = dataTotal = branchTotal = jumpTotal = 0;
+    }
+
+    @Override
+    public void trace(int pc, int opcode, int address, boolean taken, int next) {
+        final int d = decoded[pc];
+        long cycle = nextId;
+        // Earliest ID cycle allowed by each source operand
+        long earliest = cycle;
+        boolean fromLoad = false;
+        final int s1 = d & 0x1F;
+        if (s1 != 0 && (ready[s1] >> 1) - (d >>> USE1 & 3) > earliest) {
+            earliest = (ready[s1] >> 1) - (d >>> USE1 & 3);
+            fromLoad = (ready[s1] & 1) != 0;
+        }
+        final int s2 = d >>> SOURCE2 & 0x1F;
+        if (s2 != 0 && (ready[s2] >> 1) - (d >>> USE2 & 3) > earliest) {
+            earliest = (ready[s2] >> 1) - (d >>> USE2 & 3);
+            fromLoad = (ready[s2] & 1) != 0;
+        }
+        if (earliest > cycle) {
+            stall(pc, earliest - cycle, fromLoad);
+            cycle = earliest;
+        }
+        final int destination = d >>> DESTINATION & 0x1F;
+        if (destination != 0)
+            ready[destination] = (cycle + (d >>> LATENCY & 3)) << 1 | (d >>> LOAD_BIT & 1);
+        nextId = (d & (BRANCH | JUMP)) == 0 ? cycle + 1 : cycle + 1 + control(pc, d, taken);
+        ++executions[pc];
+        id = cycle;
+    }
+
+    // Rare paths kept out of trace so it stays small enough to be inlined
+    private void stall(int pc, long stall, boolean fromLoad) {
+        if (fromLoad && forwarding) {
+            loadUseStalls[pc] += stall;
+            loadUseTotal += stall;
+        } else {
+            dataStalls[pc] += stall;
+            dataTotal += stall;
+        }
+    }
+
+    // Returns the bubbles fetched behind a branch or jump
+    private int control(int pc, int d, boolean taken) {
+        int bubbles = 0;
+        if ((d & JUMP) != 0) {
+            bubbles = 1;
+            ++jumpTotal;
+        } else if (predictor == null ? taken : !predictor.record(pc, taken)) {
+            bubbles = branchInEx ? 2 : 1;
+            branchTotal += bubbles;
+        }
+        controlStalls[pc] += bubbles;
+        return bubbles;
+    }
+
+    // IF of the first instruction is cycle 0, the last one leaves WB three cycles after its ID
+    long getCycles() {
+        return id == 0 ? 0 : id + 4;
+    }
+
+    long getInstructions() {
+        long n = 0;
+        for (long count : executions)
+            n += count;
+        return n;
+    }
+
+    static PipelineModel parse(String text, Program program) {
+        boolean forwarding = true;
+        boolean branchInEx = false;
+        String[] predictor = null;
+        StringBuilder errors = new StringBuilder();
+        String[] lines = text.split("\n");
+        for (int i = 0; i < lines.length; ++i) {
+            String line = lines[i];
+            final int comment = line.indexOf('#');
+            if (comment >= 0)
+                line = line.substring(0, comment);
+            final String option = line.trim().toLowerCase().replaceAll("\\s+", " ");
+            switch (option) {
+            case "":
+                break;
+            case "forwarding on":
+                forwarding = true;
+                break;
+            case "forwarding off":
+                forwarding = false;
+                break;
+            case "branch id":
+                branchInEx = false;
+                break;
+            case "branch ex":
+                branchInEx = true;
+                break;
+            default:
+                if (option.startsWith("predictor "))
+                    predictor = option.split(" ");
+                else
+                    errors.append("Line ").append(i + 1).append(": unknown option ").append(option).append('\n');
+            }
+        }
+        if (errors.length() > 0)
+            throw new IllegalArgumentException(errors.toString().trim());
+        return new PipelineModel(program, forwarding, branchInEx,
+                predictor == null ? null : BranchPredictor.parse(predictor, 1, program.length()));
+    }
+
+    // Cycles, CPI, the stall breakdown and the source lines losing the most cycles
+    String report(ObjectFile map, List<String> source, int top) {
+        StringBuilder sb = new StringBuilder();
+        final long cycles = getCycles();
+        final long instructions = getInstructions();
+        sb.append(String.format("Pipeline, forwarding %s, branches resolved in %s, predicted %s%n",
+                forwarding ? "on" : "off", branchInEx ? "EX" : "ID",
+                predictor == null ? "not taken" : "by " + predictor.describe()));
+        sb.append(String.format("  %d cycles, %d instructions, CPI %.3f%n", cycles, instructions,
+                instructions == 0 ? 0 : (double) cycles / instructions));
+        sb.append(String.format("  %12d load-use stall cycles%n", loadUseTotal));
+        sb.append(String.format("  %12d data hazard stall cycles%n", dataTotal));
+        sb.append(String.format("  %12d branch bubbles%n", branchTotal));
+        if (predictor != null)
+            sb.append(String.format("  %12d mispredicted branches, %.2f%% accuracy%n", predictor.mispredictions,
+                    predictor.accuracy()));
+        sb.append(String.format("  %12d jump bubbles%n", jumpTotal));
+        sb.append(String.format("  %12d pipeline fill and drain%n", instructions == 0 ? 0 : 4));
+
+        int lineCount = source == null ? 0 : source.size();
+        for (int pc = 0; pc < executions.length; ++pc)
+            lineCount = Math.max(lineCount, lineOf(map, pc));
+        final long[] lineExecutions = new long[lineCount + 1];
+        final long[] lineLoadUse = new long[lineCount + 1];
+        final long[] lineData = new long[lineCount + 1];
+        final long[] lineControl = new long[lineCount + 1];
+        for (int pc = 0; pc < executions.length; ++pc) {
+            final int line = lineOf(map, pc);
+            lineExecutions[line] += executions[pc];
+            lineLoadUse[line] += loadUseStalls[pc];
+            lineData[line] += dataStalls[pc];
+            lineControl[line] += controlStalls[pc];
+        }
+        final long[] lost = new long[lineCount + 1];
+        for (int line = 0; line <= lineCount; ++line)
+            lost[line] = lineLoadUse[line] + lineData[line] + lineControl[line];
+        Integer[] order = new Integer[lineCount + 1];
+        for (int i = 0; i < order.length; ++i)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(lost[b], lost[a]));
+        sb.append(String.format("%nLines losing the most cycles%n"));
+        sb.append(String.format("  %6s %12s %10s %10s %10s %7s%n", "line", "executed", "load-use", "data",
+                "control", "CPI"));
+        for (int i = 0; i < Math.min(top, order.length) && lost[order[i]] > 0; ++i) {
+            final int line = order[i];
+            sb.append(String.format("  %6d %12d %10d %10d %10d %7.3f  %s%n", line, lineExecutions[line],
+                    lineLoadUse[line], lineData[line], lineControl[line],
+                    1 + (double) lost[line] / Math.max(1, lineExecutions[line]),
+                    source != null && line >= 1 && line <= source.size() ? source.get(line - 1).trim() : ""));
+        }
+        return sb.toString();
+    }
+
+    private static int lineOf(ObjectFile map, int pc) {
+        return map == null ? pc + 1 : map.lineOf(pc);
+    }
+
+}
@@ -0,0 +1,159 @@
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Per instruction execution counts of one program
+ * The interpreter counts every instruction, the block engines only count
+ * block entries which are expanded to instructions when a report is made
+ * Taken and not-taken counts are kept per BEQ/BNE
+ */
+class Profiler {
+
+    private final long[] counts;
+    private final long[] entries;
+    private final int[] blockLengths;
+    private final long[] taken;
+    private final long[] notTaken;
+
+    Profiler(int length) {
+        counts = new long[length];
+        entries = new long[length];
+        blockLengths = new int[length];
+        taken = new long[length];
+        notTaken = new long[length];
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(entries, 0);
+        Arrays.fill(blockLengths, 0);
+        Arrays.fill(taken, 0);
+        Arrays.fill(notTaken, 0);
+    }
+
+    void record(int pc, boolean branch, boolean wasTaken) {
+        ++counts[pc];
+        if (branch) {
+            if (wasTaken)
+                ++taken[pc];
+            else
+                ++notTaken[pc];
+        }
+    }
+
+    // The block ends with its BEQ/BNE if branch is set
+    void recordBlock(int start, int length, boolean branch, boolean wasTaken) {
+        ++entries[start];
+        blockLengths[start] = length;
+        if (branch) {
+            if (wasTaken)
+                ++taken[start + length - 1];
+            else
+                ++notTaken[start + length - 1];
+        }
+    }
+
+    long[] getCounts() {
+        long[] out = counts.clone();
+        for (int start = 0; start < entries.length; ++start) {
+            if (entries[start] == 0)
+                continue;
+            final int end = Math.min(out.length, start + blockLengths[start]);
+            for (int pc = start; pc < end; ++pc)
+                out[pc] += entries[start];
+        }
+        return out;
+    }
+
+    // Counts per source line for an editor, index 0 collects instructions without a line
+    long[] getLineCounts(ObjectFile map, int lines) {
+        return perLine(map, getCounts(), lines);
+    }
+
+    private static long[] perLine(ObjectFile map, long[] perPC, int lines) {
+        int lineCount = lines;
+        for (int pc = 0; pc < perPC.length; ++pc)
+            lineCount = Math.max(lineCount, lineOf(map, pc));
+        final long[] perLine = new long[lineCount + 1];
+        for (int pc = 0; pc < perPC.length; ++pc)
+            perLine[lineOf(map, pc)] += perPC[pc];
+        return perLine;
+    }
+
+    /*
+     * Text report with the top hot lines, per label totals, branch taken
+     * ratios and the source annotated with execution counts
+     * Without an object file every instruction is its own line
+     */
+    String report(ObjectFile map, List<String> source, int top) {
+        final long[] perPC = getCounts();
+        long total = 0;
+        for (long count : perPC)
+            total += count;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d instructions executed%n%n", total));
+
+        final long[] perLine = perLine(map, perPC, source == null ? 0 : source.size());
+
+        sb.append(String.format("Hot lines%n"));
+        Integer[] order = new Integer[perLine.length];
+        for (int i = 0; i < order.length; ++i)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(perLine[b], perLine[a]));
+        for (int i = 0; i < Math.min(top, order.length) && perLine[order[i]] > 0; ++i) {
+            final int line = order[i];
+            sb.append(String.format("  %6d %12d %6.2f%%  %s%n", line, perLine[line], percent(perLine[line], total),
+                    text(source, line)));
+        }
+
+        if (map != null && map.labelNames().length > 0) {
+            // Labels come sorted by address, each owns the instructions up to the next one
+            final String[] names = map.labelNames();
+            final int[] pcs = map.labelPCs();
+            sb.append(String.format("%nLabels%n"));
+            for (int i = 0; i < names.length; ++i) {
+                final int from = pcs[i];
+                final int to = i + 1 < names.length ? pcs[i + 1] : perPC.length;
+                long sum = 0;
+                for (int pc = from; pc < to && pc < perPC.length; ++pc)
+                    sum += perPC[pc];
+                sb.append(String.format("  %-20s %12d %6.2f%%%n", names[i], sum, percent(sum, total)));
+            }
+        }
+
+        sb.append(String.format("%nBranches%n"));
+        for (int pc = 0; pc < perPC.length; ++pc) {
+            final long all = taken[pc] + notTaken[pc];
+            if (all == 0)
+                continue;
+            sb.append(String.format("  line %6d pc %6d taken %12d of %12d %6.2f%%%n", lineOf(map, pc), pc, taken[pc],
+                    all, percent(taken[pc], all)));
+        }
+
+        if (source != null) {
+            sb.append(String.format("%nListing%n"));
+            for (int line = 1; line <= source.size(); ++line) {
+                final long count = line < perLine.length ? perLine[line] : 0;
+                sb.append(count == 0 ? String.format("%12s       | ", "")
+                        : String.format("%12d %4.0f%% | ", count, percent(count, total)));
+                sb.append(source.get(line - 1)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int lineOf(ObjectFile map, int pc) {
+        return map == null ? pc + 1 : map.lineOf(pc);
+    }
+
+    private static String text(List<String> source, int line) {
+        if (source == null || line < 1 || line > source.size())
+            return "";
+        return source.get(line - 1).trim();
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0 : part * 100.0 / whole;
+    }
+
+}
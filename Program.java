@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Loaded program with every instruction word decoded once
+ * Fields are kept in parallel primitive arrays indexed by the program
+ * counter so the execute loop never has to look at the raw bits again
+ */
+class Program {
+
+    final int[] words;
+    final byte[] opcode;
+    final byte[] rs;
+    final byte[] rt;
+    final byte[] rd;
+    final byte[] shamt;
+    final byte[] funct;
+    final int[] immediate; // Sign extended
+    final int[] target;
+    final int[] data; // initial memory image at dataAddress
+    final int dataAddress;
+    final ObjectFile object; // symbols and source lines, null for raw word streams
+    // Classes the JitCompiler translated, by block start, shared by every Machine running the program
+    final ConcurrentHashMap<Integer, MethodHandle> translations = new ConcurrentHashMap<>();
+    private long hash;
+
+    Program(int[] words) {
+        this(words, new int[0], Memory.GLOBAL_POINTER, null);
+    }
+
+    Program(int[] words, int[] data, int dataAddress, ObjectFile object) {
+        final int n = words.length;
+        this.words = words;
+        this.data = data;
+        this.dataAddress = dataAddress;
+        this.object = object;
+        this.opcode = new byte[n];
+        this.rs = new byte[n];
+        this.rt = new byte[n];
+        this.rd = new byte[n];
+        this.shamt = new byte[n];
+        this.funct = new byte[n];
+        this.immediate = new int[n];
+        this.target = new int[n];
+        for (int i = 0; i < n; ++i) {
+            decode(i, words[i]);
+        }
+    }
+
+    private void decode(int i, int word) {
+        // 6 bits opcode, 5 rs, 5 rt, 5 rd, 5 shamt, 6 fn / 16 immediate / 26 target
+        opcode[i] = (byte) (word >>> 26);
+        rs[i] = (byte) ((word >>> 21) & 0x1F);
+        rt[i] = (byte) ((word >>> 16) & 0x1F);
+        rd[i] = (byte) ((word >>> 11) & 0x1F);
+        shamt[i] = (byte) ((word >>> 6) & 0x1F);
+        funct[i] = (byte) (word & 0x3F);
+        immediate[i] = (short) word;
+        target[i] = word & 0x3FFFFFF;
+    }
+
+    /*
+     * Maps an object file and decodes it in one go
+     * Files without the ObjectFile magic are read as a raw stream, which
+     * must hold a whole number of big-endian words
+     * Relocatable objects run as they are unless they use labels of other
+     * files, those have to go through the Linker first
+     */
+    static Program load(Path path) throws IOException {
+        final ObjectFile object = ObjectFile.map(path);
+        if (object != null && !object.undefinedSymbols().isEmpty())
+            throw new IOException(path.getFileName() + " has unresolved symbols " + object.undefinedSymbols()
+                    + ", link it first");
+        if (object != null)
+            return new Program(object.text(), object.data(), object.dataAddress, object);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size % 4 != 0)
+                throw new IOException("Object file is truncated, " + size + " bytes is not a whole number of words");
+            // One mapping covers at most Integer.MAX_VALUE bytes
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Object file is too large");
+            final int[] words = new int[(int) (size / 4)];
+            if (size > 0)
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, size).asIntBuffer().get(words);
+            return new Program(words);
+        }
+    }
+
+    int length() {
+        return words.length;
+    }
+
+    // Copies the data section into freshly cleared memory
+    void loadData(Memory memory) {
+        for (int i = 0; i < data.length; ++i)
+            memory.pokeWord(dataAddress + i * 4, data[i]);
+    }
+
+    // 64-bit FNV-1a over the instruction and data words, identifies the program in checkpoints
+    long hash() {
+        if (hash == 0) {
+            long h = 0xCBF29CE484222325L;
+            for (int word : words)
+                h = (h ^ word) * 0x100000001B3L;
+            for (int word : data)
+                h = (h ^ word) * 0x100000001B3L;
+            hash = h;
+        }
+        return hash;
+    }
+
+}
@@ -2,10 +2,16 @@ import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 import javax.swing.border.Border;
 import java.awt.Color;
 import java.awt.Dimension;
@@ -13,52 +19,68 @@ import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 
 class Simulator extends JFrame{
 
-    class RInstruction{
-        int opcode;
-        int r1;
-        int r2;
-        int r3;
-        int shamt;
-        int fn;
-    }
-    class IInstruction{
-        int opcode;
-        int r1;
-        int r2;
-        int immediate;
-    }
-    class JInstruction{
-        int opcode;
-        int immediate;
-    }
-
-    class ValueView{
-        JLabel view;
-        int value;
-    }
-
     private static final long serialVersionUID = 1504897909001058412L;
+    // Background runs refresh the view at most this often (30 Hz)
+    private static final long REFRESH_INTERVAL = 1000000000L / 30;
+    // Instructions executed between two checks of the clock and the buttons
+    private static final int RUN_CHUNK = 100000;
+    // History bounds, -Dmips.journal.entries, .interval and .snapshots override them
+    private static final int JOURNAL_ENTRIES = Integer.getInteger("mips.journal.entries", 1000000);
+    private static final long JOURNAL_INTERVAL = Long.getLong("mips.journal.interval", 100000);
+    private static final int JOURNAL_SNAPSHOTS = Integer.getInteger("mips.journal.snapshots", 64);
+
+    private JButton loadProgram;
     private JButton executeProgram;
     private JButton executeInstruction;
+    private JButton stepBack;
+    private JButton runBack;
+    private JCheckBox recordHistory;
+    private JButton pauseProgram;
+    private JButton stopProgram;
+    private JButton showProfile;
+    private JButton editBreakpoints;
+    private JButton configureCaches;
+    private JButton configurePipeline;
+    private JButton configureBranches;
+    private JButton saveState;
+    private JButton restoreState;
+    private JComboBox<Machine.Engine> engineSelector;
     private JLabel programCounter;
     private JLabel fullCode;
     private JLabel opcode;
     private JLabel instructionType;
-    private int nextInstruction;
-    private ArrayList<byte[]> commands;
-    private HashMap<Integer, ValueView> registerContents;
-    private JPanel registersView;
-    private HashMap<Integer, ValueView> memoryContents;
-    private JPanel memoryView;
+    private final Machine machine = new Machine();
+    private final Metrics metrics = new Metrics();
+    // Symbols, line numbers and source of the loaded program, null for raw word streams or missing files
+    private ObjectFile objectFile;
+    private List<String> source;
+    private Path sourcePath;
+    // Editor that shows the profile next to the source, may be null
+    private IDE ide;
+    // Breakpoints in their text form, applied again to every loaded program
+    private String breakpointText = "";
+    // Cache hierarchy in its text form and the model traced for the loaded program
+    private String cacheText = "";
+    private CacheModel caches;
+    // Pipeline timing options in their text form and the model traced for the loaded program
+    private String pipelineText = "";
+    private PipelineModel pipeline;
+    // Branch predictors in their text form and the model traced for the loaded program
+    private String branchText = "";
+    private BranchModel branches;
+    private StateView stateView;
+    private Thread runner;
+    private volatile boolean pauseRequested;
+    private volatile boolean stopRequested;
 
     Simulator(){
         super("MIPS-32 Simulator");
@@ -72,7 +94,7 @@ class Simulator extends JFrame{
 
         JPanel toolbar = new JPanel();
         toolbar.setLayout(new BoxLayout(toolbar, BoxLayout.LINE_AXIS));
-        JButton loadProgram = new JButton("Load program");
+        loadProgram = new JButton("Load program");
         loadProgram.setActionCommand("load_program");
         loadProgram.addActionListener(el);
         executeProgram = new JButton("Execute Program");
@@ -83,6 +105,61 @@ class Simulator extends JFrame{
         executeInstruction.setEnabled(false);
         executeInstruction.setActionCommand("execute_instruction");
         executeInstruction.addActionListener(el);
+        stepBack = new JButton("Step Back");
+        stepBack.setEnabled(false);
+        stepBack.setActionCommand("step_back");
+        stepBack.addActionListener(el);
+        runBack = new JButton("Run Back to PC");
+        runBack.setEnabled(false);
+        runBack.setActionCommand("run_back");
+        runBack.addActionListener(el);
+        // Recording runs every engine through the interpreter, so it is off until asked for
+        recordHistory = new JCheckBox("History", false);
+        recordHistory.setToolTipText("Record for Step Back, runs every engine as the interpreter");
+        recordHistory.setActionCommand("record_history");
+        recordHistory.addActionListener(el);
+        pauseProgram = new JButton("Pause");
+        pauseProgram.setEnabled(false);
+        pauseProgram.setActionCommand("pause_program");
+        pauseProgram.addActionListener(el);
+        stopProgram = new JButton("Stop");
+        stopProgram.setEnabled(false);
+        stopProgram.setActionCommand("stop_program");
+        stopProgram.addActionListener(el);
+        showProfile = new JButton("Profile");
+        showProfile.setEnabled(false);
+        showProfile.setActionCommand("show_profile");
+        showProfile.addActionListener(el);
+        editBreakpoints = new JButton("Breakpoints");
+        editBreakpoints.setEnabled(false);
+        editBreakpoints.setActionCommand("edit_breakpoints");
+        editBreakpoints.addActionListener(el);
+        configureCaches = new JButton("Caches");
+        configureCaches.setEnabled(false);
+        configureCaches.setActionCommand("configure_caches");
+        configureCaches.addActionListener(el);
+        configurePipeline = new JButton("Pipeline");
+        configurePipeline.setEnabled(false);
+        configurePipeline.setActionCommand("configure_pipeline");
+        configurePipeline.addActionListener(el);
+        configureBranches = new JButton("Branches");
+        configureBranches.setEnabled(false);
+        configureBranches.setActionCommand("configure_branches");
+        configureBranches.addActionListener(el);
+        saveState = new JButton("Save state");
+        saveState.setEnabled(false);
+        saveState.setActionCommand("save_state");
+        saveState.addActionListener(el);
+        restoreState = new JButton("Restore state");
+        restoreState.setEnabled(false);
+        restoreState.setActionCommand("restore_state");
+        restoreState.addActionListener(el);
+        engineSelector = new JComboBox<>(Machine.Engine.values());
+        engineSelector.setMaximumSize(engineSelector.getPreferredSize());
+        engineSelector.setToolTipText(
+                "History, breakpoints and the cache, pipeline and branch models run THREADED and JIT as the interpreter");
+        engineSelector.setActionCommand("select_engine");
+        engineSelector.addActionListener(el);
         programCounter = new JLabel("-1");
         programCounter.setBorder(BorderFactory.createLineBorder(Color.decode("#005500"), 3));
         programCounter.setFont(new Font("Monospaced", Font.PLAIN, 25));
@@ -92,6 +169,24 @@ class Simulator extends JFrame{
         toolbar.add(Box.createHorizontalGlue());
         toolbar.add(executeInstruction);
         toolbar.add(Box.createHorizontalGlue());
+        toolbar.add(stepBack);
+        toolbar.add(runBack);
+        toolbar.add(recordHistory);
+        toolbar.add(Box.createHorizontalGlue());
+        toolbar.add(pauseProgram);
+        toolbar.add(stopProgram);
+        toolbar.add(Box.createHorizontalGlue());
+        toolbar.add(showProfile);
+        toolbar.add(editBreakpoints);
+        toolbar.add(configureCaches);
+        toolbar.add(configurePipeline);
+        toolbar.add(configureBranches);
+        toolbar.add(Box.createHorizontalGlue());
+        toolbar.add(saveState);
+        toolbar.add(restoreState);
+        toolbar.add(Box.createHorizontalGlue());
+        toolbar.add(engineSelector);
+        toolbar.add(Box.createHorizontalGlue());
         toolbar.add(programCounter);
         this.add(toolbar);
 
@@ -110,24 +205,24 @@ class Simulator extends JFrame{
         instruction_info.add(instructionType);
         this.add(instruction_info);
 
-        JPanel row = new JPanel();
-        row.setLayout(new BoxLayout(row, BoxLayout.LINE_AXIS));
-        this.add(row);
-        registersView = new JPanel();
-        registersView.setLayout(new BoxLayout(registersView, BoxLayout.PAGE_AXIS));
-        row.add(registersView);
-        memoryView = new JPanel();
-        memoryView.setLayout(new BoxLayout(memoryView, BoxLayout.PAGE_AXIS));
-        row.add(memoryView);
+        stateView = new StateView(machine);
+        this.add(stateView);
+
+        // Counters are exposed over JMX, -Dmips.metrics.dump=SECONDS also prints them periodically
+        machine.setMetrics(metrics);
+        metrics.register("simulator");
+        final long dumpPeriod = Long.getLong("mips.metrics.dump", 0);
+        if(dumpPeriod > 0)
+            metrics.startDump(dumpPeriod, System.out);
 
         this.pack();
-        this.setSize(new Dimension(600, 300));
+        this.setSize(new Dimension(600, 500));
         this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         this.setVisible(true);
     }
 
     void loadNextInstruction(){
-        if(nextInstruction >= commands.size()){
+        if(machine.isHalted()){
             this.fullCode.setText("END");
             this.opcode.setText("XXXXXX");
             this.instructionType.setText("");
@@ -136,284 +231,296 @@ class Simulator extends JFrame{
             this.executeProgram.setEnabled(false);
             return;
         }
-        byte[] instruction = commands.get(nextInstruction);
-        final String instruction_code = getByteBits(instruction);
+        final int instruction = machine.getInstruction(machine.getPC());
+        final String instruction_code = getWordBits(instruction);
         this.fullCode.setText(instruction_code);
-        final String opcode = instruction_code.substring(0, 6);
-        this.opcode.setText(opcode);
-        if(opcode == "000000") this.instructionType.setText("R Type");
-        else if(opcode == "000010") this.instructionType.setText("J Type");
+        this.opcode.setText(instruction_code.substring(0, 6));
+        final int opcode = instruction >>> 26;
+        if(opcode == 0) this.instructionType.setText("R Type");
+        else if(opcode == 2) this.instructionType.setText("J Type");
         else this.instructionType.setText("I Type");
-        this.programCounter.setText(String.valueOf(nextInstruction));
+        this.programCounter.setText(String.valueOf(machine.getPC()));
     }
 
-    void updateRegister(int n, int val){
-        getRegister(n);
-        ValueView vv = registerContents.get(n);
-        vv.value = val;
-        String name = "";
-        if(n == 0)
-            name = "$0";
-        else if(n == 1)
-            name = "$at";
-        else if(n <= 3)
-            name = "$v" + String.valueOf(n - 2);
-        else if(n <= 7)
-            name = "$a" + String.valueOf(n - 4);
-        else if(n <= 15)
-            name = "$t" + String.valueOf(n - 8);
-        else if(n <= 23)
-            name = "$s" + String.valueOf(n - 16);
-        else if(n <= 25)
-            name = "$t" + String.valueOf(n - 24);
-        else if(n <= 27)
-            name = "$k" + String.valueOf(n - 26);
-        else if(n == 28)
-            name = "$gp";
-        else if(n == 29)
-            name = "$sp";
-        else if(n == 30)
-            name = "$fp";
-        else if(n == 31)
-            name = "$ra";
-        vv.view.setText(name + ": " + val);
+    // Copies machine state into the view, called once per refresh rather than per write
+    void refreshView(){
+        stateView.refresh();
+        loadNextInstruction();
+    }
+
+    void executeNextInstruction(){
+        if(machine.getBreakpoints() != null)
+            machine.getBreakpoints().resume(machine);
+        machine.step();
+        refreshView();
+        setRunning(false);
+        showHit();
+    }
+
+    void stepBack(){
+        if(!machine.getJournal().stepBack(machine))
+            JOptionPane.showMessageDialog(this, "No older history is kept");
+        refreshView();
+        setRunning(false);
     }
 
-    int getRegister(int n){
-        // Check if register was accesses and added to view
-        if(registerContents.containsKey(n)){
-            return registerContents.get(n).value;
-        }else{
-            ValueView vv = new ValueView();
-            vv.value = 0;
-            vv.view = new JLabel();
-            vv.view.setFont(new Font("Monospaced", Font.PLAIN, 16));
-            registersView.add(vv.view);
-            registerContents.put(n, vv);
-            updateRegister(n, vv.value);
+    void runBack(){
+        final String input = JOptionPane.showInputDialog(this, "Run back to PC");
+        if(input == null)
+            return;
+        final int target;
+        try {
+            target = Integer.decode(input.trim());
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Not a number: " + input);
+            return;
         }
-        return 0;
+        machine.getJournal().runBackTo(machine, target);
+        if(machine.getPC() != target)
+            JOptionPane.showMessageDialog(this, "PC " + target + " is not in the kept history");
+        refreshView();
+        setRunning(false);
     }
 
-    void updateMemory(int address, int value){
-        getMemory(address);
-        ValueView vv = memoryContents.get(address);
-        vv.value = value;
-        vv.view.setText("0x" + Integer.toBinaryString(address) + ": " + value);
+    // Reports the breakpoint or watchpoint the machine stopped on, if any
+    void showHit(){
+        final String hit = machine.getBreakpoints() == null ? null : machine.getBreakpoints().takeHit();
+        if(hit != null)
+            JOptionPane.showMessageDialog(this, hit);
     }
 
-    int getMemory(int address){
-        if(memoryContents.containsKey(address)){
-            return memoryContents.get(address).value;
-        }else{
-            ValueView vv = new ValueView();
-            vv.value = 0;
-            vv.view = new JLabel();
-            vv.view.setFont(new Font("Monospaced", Font.PLAIN, 16));
-            memoryView.add(vv.view);
-            memoryContents.put(address, vv);
-            updateMemory(address, vv.value);
+    /*
+     * Replaces the breakpoints of the loaded program with the text form,
+     * an empty text removes them and lets the fast engines run again
+     */
+    void applyBreakpoints(String text){
+        if(machine.getBreakpoints() != null)
+            machine.getBreakpoints().clear();
+        machine.setBreakpoints(null);
+        breakpointText = text;
+        Breakpoints breakpoints = new Breakpoints(machine.getProgram(), machine.getMemory());
+        try {
+            breakpoints.parse(text, objectFile, machine);
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage());
         }
-        return 0;
+        if(!breakpoints.isEmpty())
+            machine.setBreakpoints(breakpoints);
     }
 
-    void executeNextInstruction(){
-        byte[] code = commands.get(nextInstruction);
-        final String instruction_code = getByteBits(code);
-        final String opcode = instruction_code.substring(0, 6);
-        switch(opcode){
-            case "000000":{
-                RInstruction instruction = decodeR(code);
-                switch(instruction.fn){
-                    case 32:{ // ADD
-                        int r1 = getRegister(instruction.r1);
-                        int r2 = getRegister(instruction.r2);
-                        updateRegister(instruction.r3, r1+r2);
-                        break;
-                    }
-                    case 34:{ // SUB
-                        int r1 = getRegister(instruction.r1);
-                        int r2 = getRegister(instruction.r2);
-                        updateRegister(instruction.r3, r1-r2);
-                        break;
-                    }
-                    case 36:{ // AND
-                        int r1 = getRegister(instruction.r1);
-                        int r2 = getRegister(instruction.r2);
-                        updateRegister(instruction.r3, r1&r2);
-                        break;
-                    }
-                    case 37:{ // OR
-                        int r1 = getRegister(instruction.r1);
-                        int r2 = getRegister(instruction.r2);
-                        updateRegister(instruction.r3, r1|r2);
-                        break;
-                    }
-                    case 42:{ // SLT
-                        int r1 = getRegister(instruction.r1);
-                        int r2 = getRegister(instruction.r2);
-                        updateRegister(instruction.r3, r1<r2 ? 1 : 0);
-                        break;
-                    }
-                    case 0:{ // SLL
-                        int r1 = getRegister(instruction.r1);
-                        updateRegister(instruction.r3, (r1 << instruction.shamt));
-                        break;
-                    }
-                    case 8: { // JR
-                        int r1 = getRegister(instruction.r1);
-                        nextInstruction = r1-1;
-                        break;
-                    }
-                }
-                break;
-            }
-            case "100011":{ // LW
-                IInstruction instruction = decodeI(code);
-                int srcMemAdd = getRegister(instruction.r1);
-                int srcMem = getMemory(srcMemAdd + instruction.immediate + 8);
-                updateRegister(instruction.r2, srcMem);
-                break;
-            }
-            case "101011":{ // SW
-                IInstruction instruction = decodeI(code);
-                int dstMemAdd = getRegister(instruction.r1);
-                int srcReg = getRegister(instruction.r2);
-                updateMemory(dstMemAdd + instruction.immediate + 8, srcReg);
-                break;
-            }
-            case "001000":{ // ADDi
-                IInstruction instruction = decodeI(code);
-                int src = getRegister(instruction.r1);
-                updateRegister(instruction.r2, src + instruction.immediate);
-                break;
-            }
-            case "001100":{ // ANDI
-                IInstruction instruction = decodeI(code);
-                int src = getRegister(instruction.r1);
-                updateRegister(instruction.r2, src & instruction.immediate);
-                break;
-            }
-            case "001101":{ // ORI
-                IInstruction instruction = decodeI(code);
-                int src = getRegister(instruction.r1);
-                updateRegister(instruction.r2, src | instruction.immediate);
-                break;
-            }
-            case "001010":{ // SLTI
-                IInstruction instruction = decodeI(code);
-                int src = getRegister(instruction.r1);
-                updateRegister(instruction.r2, src < instruction.immediate ? 1 : 0);
-                break;
-            }
-            case "001111":{ // LUI
-                IInstruction instruction = decodeI(code, false);
-                System.out.println(instruction.immediate);
-                System.out.println(instruction.immediate << 16);
-                updateRegister(instruction.r1, (instruction.immediate << 16));
-                break;
-            }
-            case "000010":{ // J
-                JInstruction instruction = decodeJ(code);
-                nextInstruction = instruction.immediate-1;
-                break;
-            }
-            case "000100":{ // BEQ
-                IInstruction instruction = decodeI(code);
-                int reg1 = getRegister(instruction.r1);
-                int reg2 = getRegister(instruction.r2);
-                int pc = instruction.immediate;
-                if(reg1 == reg2){
-                    nextInstruction = pc-1;
-                }
-                break;
-            }
-            case "000101":{ // BNE
-                IInstruction instruction = decodeI(code);
-                int reg1 = getRegister(instruction.r1);
-                int reg2 = getRegister(instruction.r2);
-                int pc = instruction.immediate;
-                if(reg1 != reg2){
-                    nextInstruction = pc-1;
-                }
-                break;
-            }
+    void editBreakpoints(){
+        JTextArea text = new JTextArea(breakpointText, 10, 40);
+        text.setFont(new Font("Monospaced", Font.PLAIN, 13));
+        final String help = "One per line: PC or LABEL [if $REG OP VALUE], watch ADDRESS, rwatch ADDRESS, watch $REG";
+        if(JOptionPane.showConfirmDialog(this, new Object[]{ help, new JScrollPane(text) }, "Breakpoints",
+                JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION)
+            applyBreakpoints(text.getText());
+    }
+
+    // Replaces the traced cache model, an empty text turns cache simulation off
+    void applyCaches(String text){
+        if(caches != null)
+            machine.removeTracer(caches);
+        caches = null;
+        cacheText = text;
+        if(text.trim().isEmpty())
+            return;
+        try {
+            caches = CacheModel.parse(text, machine.getProgramLength());
+            machine.addTracer(caches);
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage());
         }
-        nextInstruction++;
-        loadNextInstruction();
     }
 
-    RInstruction decodeR(byte[] b){
-        // 6 bits opcode, 5 src reg, 5 src reg, 5 dst reg, 5 shamt, 6 fn
-        RInstruction instruction = new RInstruction();
-        final String code = getByteBits(b);
-        final String opcode = code.substring(0, 6);
-        instruction.opcode = binaryStrToInt(opcode, false);
-        final String src1 = code.substring(6, 11);
-        instruction.r1 = binaryStrToInt(src1, false);
-        final String src2 = code.substring(11, 16);
-        instruction.r2 = binaryStrToInt(src2, false);
-        final String dst = code.substring(16, 21);
-        instruction.r3 = binaryStrToInt(dst, false);
-        final String shamt = code.substring(21, 26);
-        instruction.shamt = binaryStrToInt(shamt, false);
-        final String fn = code.substring(26, 32);
-        instruction.fn = binaryStrToInt(fn, false);
-        return instruction;
+    void configureCaches(){
+        JTextArea text = new JTextArea(cacheText.isEmpty()
+                ? "l1i 4K 1 32\nl1d 4K 2 32 lru wb alloc\nl2 64K 8 64 hit 10\nmemory 100\n" : cacheText, 6, 40);
+        text.setFont(new Font("Monospaced", Font.PLAIN, 13));
+        final String help = "One level per line: l1i|l1d|l2 SIZE WAYS BLOCK [lru|fifo|random] [wb|wt] [alloc|noalloc]"
+                + " [hit CYCLES], memory CYCLES. Empty to turn off";
+        if(JOptionPane.showConfirmDialog(this, new Object[]{ help, new JScrollPane(text) }, "Caches",
+                JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION)
+            applyCaches(text.getText());
     }
 
-    IInstruction decodeI(byte[] b, boolean signedImmediate){
-        // 6 bits opcode, 5 src reg, 5 src reg, 16 immediate
-        IInstruction instruction = new IInstruction();
-        final String code = getByteBits(b);
-        final String opcode = code.substring(0, 6);
-        instruction.opcode = binaryStrToInt(opcode, false);
-        final String src = code.substring(6, 11);
-        instruction.r1 = binaryStrToInt(src, false);
-        final String dst = code.substring(11, 16);
-        instruction.r2 = binaryStrToInt(dst, false);
-        final String immediate = code.substring(16, 32);
-        instruction.immediate = binaryStrToInt(immediate, signedImmediate);
-        return instruction;
+    // Replaces the traced pipeline model, an empty text turns pipeline timing off
+    void applyPipeline(String text){
+        if(pipeline != null)
+            machine.removeTracer(pipeline);
+        pipeline = null;
+        pipelineText = text;
+        if(text.trim().isEmpty())
+            return;
+        try {
+            pipeline = PipelineModel.parse(text, machine.getProgram());
+            machine.addTracer(pipeline);
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage());
+        }
     }
-    IInstruction decodeI(byte[] b){
-        return decodeI(b, true);
+
+    void configurePipeline(){
+        JTextArea text = new JTextArea(pipelineText.isEmpty() ? "forwarding on\nbranch id\n" : pipelineText, 4, 40);
+        text.setFont(new Font("Monospaced", Font.PLAIN, 13));
+        final String help = "One option per line: forwarding on|off, branch id|ex,"
+                + " predictor taken|nottaken|1bit|2bit|gshare [ENTRIES] [history BITS]. Empty to turn off";
+        if(JOptionPane.showConfirmDialog(this, new Object[]{ help, new JScrollPane(text) }, "Pipeline",
+                JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION)
+            applyPipeline(text.getText());
+    }
+
+    // Replaces the traced branch predictors, an empty text turns branch prediction off
+    void applyBranches(String text){
+        if(branches != null)
+            machine.removeTracer(branches);
+        branches = null;
+        branchText = text;
+        if(text.trim().isEmpty())
+            return;
+        try {
+            branches = BranchModel.parse(text, machine.getProgram());
+            machine.addTracer(branches);
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage());
+        }
     }
 
-    JInstruction decodeJ(byte[] b){
-        // 6 bits opcode, other immediate
-        JInstruction instruction = new JInstruction();
-        final String code = getByteBits(b);
-        final String opcode = code.substring(0, 6);
-        instruction.opcode = binaryStrToInt(opcode, false);
-        final String immediate = code.substring(6, 32);
-        instruction.immediate = binaryStrToInt(immediate, true);
-        return instruction;
+    void configureBranches(){
+        JTextArea text = new JTextArea(branchText.isEmpty()
+                ? "predictor nottaken\npredictor 2bit 1024\npredictor gshare 4096 history 12\nbtb 256\npenalty 2\n"
+                : branchText, 6, 40);
+        text.setFont(new Font("Monospaced", Font.PLAIN, 13));
+        final String help = "One per line: predictor taken|nottaken|1bit|2bit|gshare [ENTRIES] [history BITS],"
+                + " btb ENTRIES [penalty CYCLES], penalty CYCLES. Empty to turn off";
+        if(JOptionPane.showConfirmDialog(this, new Object[]{ help, new JScrollPane(text) }, "Branches",
+                JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION)
+            applyBranches(text.getText());
     }
 
-    int binaryStrToInt(String binary, boolean signed){
-        boolean positive = binary.charAt(0) == '0';
-        if(signed && !positive){
-            String inverted = "";
-            for(int i = 0; i < binary.length(); ++i){
-                inverted += binary.charAt(i) == '1' ? '0' : '1';
+    void setRunning(boolean running){
+        loadProgram.setEnabled(!running);
+        executeProgram.setEnabled(!running && !machine.isHalted());
+        executeInstruction.setEnabled(!running && !machine.isHalted());
+        engineSelector.setEnabled(!running);
+        stepBack.setEnabled(!running && machine.getJournal() != null && machine.getSteps() > 0);
+        runBack.setEnabled(!running && machine.getJournal() != null && machine.getSteps() > 0);
+        recordHistory.setEnabled(!running);
+        showProfile.setEnabled(!running && machine.getProfiler() != null);
+        editBreakpoints.setEnabled(!running && machine.getProgramLength() > 0);
+        configureCaches.setEnabled(!running && machine.getProgramLength() > 0);
+        configurePipeline.setEnabled(!running && machine.getProgramLength() > 0);
+        configureBranches.setEnabled(!running && machine.getProgramLength() > 0);
+        saveState.setEnabled(!running && machine.getProgramLength() > 0);
+        restoreState.setEnabled(!running && machine.getProgramLength() > 0);
+        pauseProgram.setEnabled(running);
+        stopProgram.setEnabled(running);
+    }
+
+    // Starts executing on a worker thread, the EDT only sees coalesced refreshes
+    void startProgram(){
+        if(machine.getBreakpoints() != null)
+            machine.getBreakpoints().resume(machine);
+        pauseRequested = false;
+        stopRequested = false;
+        setRunning(true);
+        runner = new Thread(new ProgramRunner(), "mips-runner");
+        runner.setDaemon(true);
+        runner.start();
+    }
+
+    void finishProgram(String error){
+        runner = null;
+        if(stopRequested)
+            machine.reset();
+        refreshView();
+        setRunning(false);
+        if(error != null)
+            JOptionPane.showMessageDialog(this, error);
+        else
+            showHit();
+    }
+
+    class ProgramRunner implements Runnable{
+
+        @Override
+        public void run() {
+            String error = null;
+            long lastRefresh = System.nanoTime();
+            try {
+                while(!pauseRequested && !stopRequested && !machine.isHalted() && !machine.isStopped()){
+                    machine.run(RUN_CHUNK);
+                    final long now = System.nanoTime();
+                    if(now - lastRefresh >= REFRESH_INTERVAL){
+                        // The worker waits while the EDT copies state, so every refresh is a consistent snapshot
+                        SwingUtilities.invokeAndWait(Simulator.this::refreshView);
+                        lastRefresh = System.nanoTime();
+                    }
+                }
+            } catch (RuntimeException e) {
+                error = e.getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (InvocationTargetException e) {
+                e.printStackTrace();
             }
-            int val = Integer.parseInt(inverted, 2);
-            return (val + 1) * -1;
-        }else{
-            return Integer.parseInt(binary, 2);
+            final String message = error;
+            SwingUtilities.invokeLater(() -> finishProgram(message));
         }
-    }
 
+    }
 
-    String getByteBits(byte[] b){
-        String output = "";
-        for(int i = 0; i < b.length; ++i){
-            for(int j = 7; j >= 0; --j){
-                output += ((1 << j) & b[i]) > 0 ? '1' : '0';
+    /*
+     * The assembler writes prog.asm.o next to prog.asm, symbols and lines
+     * come from the object file and are missing for raw word streams
+     */
+    void loadSource(Path object){
+        objectFile = machine.getProgram().object;
+        source = null;
+        sourcePath = null;
+        try {
+            final String name = object.toString();
+            if(name.endsWith(".o")){
+                final Path text = Paths.get(name.substring(0, name.length() - 2));
+                if(Files.exists(text)){
+                    source = Files.readAllLines(text);
+                    sourcePath = text;
+                }
             }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return output;
+    }
+
+    void setIDE(IDE ide){
+        this.ide = ide;
+    }
+
+    // The report lists everything, the IDE also annotates the source if it has it open
+    void showProfile(){
+        if(ide != null && objectFile != null && source != null)
+            ide.showProfile(sourcePath, machine.getProfiler().getLineCounts(objectFile, source.size()));
+        String text = machine.getProfiler().report(objectFile, source, 20);
+        if(caches != null)
+            text += "\n" + caches.report(objectFile, source, 20);
+        if(pipeline != null)
+            text += "\n" + pipeline.report(objectFile, source, 20);
+        if(branches != null)
+            text += "\n" + branches.report(objectFile, source, 20);
+        JTextArea report = new JTextArea(text);
+        report.setFont(new Font("Monospaced", Font.PLAIN, 13));
+        report.setEditable(false);
+        report.setCaretPosition(0);
+        JFrame window = new JFrame("Profile");
+        window.add(new JScrollPane(report));
+        window.setSize(new Dimension(800, 600));
+        window.setLocationRelativeTo(this);
+        window.setVisible(true);
+    }
+
+    String getWordBits(int word){
+        final String bits = Integer.toBinaryString(word);
+        return "00000000000000000000000000000000".substring(bits.length()) + bits;
     }
 
     class SimulatorEventListener implements ActionListener{
@@ -427,42 +534,109 @@ class Simulator extends JFrame{
                     int stat = fChooser.showOpenDialog(Simulator.this);
                     if(stat == JFileChooser.APPROVE_OPTION){
                         // Load codes
-                        commands = new ArrayList<>();
-                        registerContents = new HashMap<>();
-                        memoryContents = new HashMap<>();
-                        registersView.removeAll();
-                        registersView.add(Box.createHorizontalGlue());
-                        registersView.add(Box.createVerticalStrut(10));
-                        memoryView.removeAll();
-                        memoryView.add(Box.createHorizontalGlue());
-                        registersView.add(Box.createVerticalStrut(10));
                         try {
-                            FileInputStream fis = new FileInputStream(fChooser.getSelectedFile());
-                            byte[] command = new byte[4];
-                            while(fis.read(command) > 0){
-                                byte[] b = Arrays.copyOf(command, 4);
-                                commands.add(b);
-                            }
-                            fis.close();
-                            executeProgram.setEnabled(true);
-                            executeInstruction.setEnabled(true);
-                            nextInstruction = 0;
-                            loadNextInstruction();
-                        } catch (FileNotFoundException e) {
-                            e.printStackTrace();
+                            final Path object = fChooser.getSelectedFile().toPath();
+                            if(machine.getBreakpoints() != null)
+                                machine.getBreakpoints().clear();
+                            machine.setBreakpoints(null);
+                            machine.load(Program.load(object));
+                            machine.setProfiler(new Profiler(machine.getProgramLength()));
+                            machine.setJournal(recordHistory.isSelected()
+                                    ? new Journal(JOURNAL_ENTRIES, JOURNAL_INTERVAL, JOURNAL_SNAPSHOTS) : null);
+                            loadSource(object);
+                            if(!breakpointText.trim().isEmpty())
+                                applyBreakpoints(breakpointText);
+                            if(caches != null)
+                                machine.removeTracer(caches);
+                            caches = null;
+                            if(!cacheText.trim().isEmpty())
+                                applyCaches(cacheText);
+                            if(pipeline != null)
+                                machine.removeTracer(pipeline);
+                            pipeline = null;
+                            if(!pipelineText.trim().isEmpty())
+                                applyPipeline(pipelineText);
+                            if(branches != null)
+                                machine.removeTracer(branches);
+                            branches = null;
+                            if(!branchText.trim().isEmpty())
+                                applyBranches(branchText);
+                            metrics.reset();
+                            stateView.reset();
+                            refreshView();
+                            setRunning(false);
                         } catch (IOException e) {
                             e.printStackTrace();
+                            JOptionPane.showMessageDialog(Simulator.this, e.getMessage());
                         }
                     }
                     break;
                 case "execute_instruction":
-                    executeNextInstruction();
+                    try {
+                        executeNextInstruction();
+                    } catch (RuntimeException e) {
+                        refreshView();
+                        JOptionPane.showMessageDialog(Simulator.this, e.getMessage());
+                    }
+                    break;
+                case "step_back":
+                    stepBack();
+                    break;
+                case "run_back":
+                    runBack();
+                    break;
+                case "record_history":
+                    if(machine.getProgramLength() > 0)
+                        machine.setJournal(recordHistory.isSelected()
+                                ? new Journal(JOURNAL_ENTRIES, JOURNAL_INTERVAL, JOURNAL_SNAPSHOTS) : null);
+                    setRunning(false);
                     break;
                 case "execute_program":
-                    while(nextInstruction < commands.size()){
-                        executeNextInstruction();
+                    startProgram();
+                    break;
+                case "edit_breakpoints":
+                    editBreakpoints();
+                    break;
+                case "configure_caches":
+                    configureCaches();
+                    break;
+                case "configure_pipeline":
+                    configurePipeline();
+                    break;
+                case "configure_branches":
+                    configureBranches();
+                    break;
+                case "save_state":
+                case "restore_state":
+                    JFileChooser stateChooser = new JFileChooser(new File(System.getProperty("user.dir")));
+                    final boolean save = action.equals("save_state");
+                    if((save ? stateChooser.showSaveDialog(Simulator.this) : stateChooser.showOpenDialog(Simulator.this))
+                            != JFileChooser.APPROVE_OPTION)
+                        break;
+                    try {
+                        if(save){
+                            Checkpoint.save(machine, stateChooser.getSelectedFile().toPath());
+                        }else{
+                            Checkpoint.restore(machine, stateChooser.getSelectedFile().toPath());
+                            refreshView();
+                            setRunning(false);
+                        }
+                    } catch (IOException e) {
+                        JOptionPane.showMessageDialog(Simulator.this, e.getMessage());
                     }
                     break;
+                case "show_profile":
+                    showProfile();
+                    break;
+                case "select_engine":
+                    machine.setEngine((Machine.Engine) engineSelector.getSelectedItem());
+                    break;
+                case "pause_program":
+                    pauseRequested = true;
+                    break;
+                case "stop_program":
+                    stopRequested = true;
+                    break;
             }
         }
 
@@ -0,0 +1,296 @@
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javax.swing.BoxLayout;
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.JTextField;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
+
+/*
+ * Register and memory tables of a Machine
+ * Both tables sit on models that compute rows on demand, so Swing only
+ * renders the rows on screen and a refresh costs the same however much
+ * memory the program touches
+ * Memory lists every word of the allocated pages in address order
+ * refresh copies the registers and the visible memory rows and marks the
+ * values that differ from the previous refresh, for memory only among the
+ * rows that were on screen then
+ */
+class StateView extends JPanel {
+
+    private static final long serialVersionUID = 3160746415287334901L;
+    private static final Color CHANGED = new Color(0xFF, 0xE0, 0x80);
+    private static final Font FONT = new Font("Monospaced", Font.PLAIN, 14);
+
+    private final Machine machine;
+    private final RegisterModel registers = new RegisterModel();
+    private final MemoryModel memory = new MemoryModel();
+    private final JTable registerTable = new JTable(registers);
+    private final JTable memoryTable = new JTable(memory);
+    private final JCheckBox hexadecimal = new JCheckBox("Hex");
+    private final JTextField address = new JTextField(10);
+
+    StateView(Machine machine) {
+        this.machine = machine;
+        setLayout(new BorderLayout());
+
+        JPanel tools = new JPanel();
+        tools.setLayout(new BoxLayout(tools, BoxLayout.LINE_AXIS));
+        hexadecimal.addActionListener(e -> {
+            registerTable.repaint();
+            memoryTable.repaint();
+        });
+        JButton go = new JButton("Go");
+        go.addActionListener(e -> jumpTo(address.getText()));
+        address.addActionListener(e -> jumpTo(address.getText()));
+        address.setMaximumSize(address.getPreferredSize());
+        tools.add(hexadecimal);
+        tools.add(new JLabel(" Address "));
+        tools.add(address);
+        tools.add(go);
+        add(tools, BorderLayout.NORTH);
+
+        JPanel tables = new JPanel();
+        tables.setLayout(new BoxLayout(tables, BoxLayout.LINE_AXIS));
+        for (JTable table : new JTable[] { registerTable, memoryTable }) {
+            table.setFont(FONT);
+            table.setRowHeight(table.getFontMetrics(FONT).getHeight() + 2);
+            table.setDefaultRenderer(Object.class, new ChangedRenderer());
+            table.setFillsViewportHeight(true);
+            JScrollPane scroll = new JScrollPane(table);
+            scroll.setPreferredSize(new Dimension(table == registerTable ? 200 : 300, 200));
+            tables.add(scroll);
+        }
+        add(tables, BorderLayout.CENTER);
+    }
+
+    // Forgets the previous values, the next refresh after loading a program marks nothing
+    void reset() {
+        registers.started = false;
+        memory.forget();
+    }
+
+    void refresh() {
+        registers.refresh();
+        memory.refresh();
+    }
+
+    private String format(int value) {
+        return hexadecimal.isSelected() ? String.format("0x%08x", value) : String.valueOf(value);
+    }
+
+    // Scrolls to the row of text, a decimal or 0x address, or to the nearest allocated page
+    void jumpTo(String text) {
+        final int target;
+        try {
+            final long value = Long.decode(text.trim());
+            if (value < Integer.MIN_VALUE || value > 0xFFFFFFFFL)
+                throw new NumberFormatException();
+            target = (int) value & ~3;
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Not an address: " + text);
+            return;
+        }
+        final int[] pages = memory.pages;
+        if (pages.length == 0) {
+            JOptionPane.showMessageDialog(this, "The program has not used any memory yet");
+            return;
+        }
+        final int number = target >>> Memory.PAGE_BITS;
+        int page = Arrays.binarySearch(pages, number);
+        int row;
+        if (page >= 0) {
+            row = page * Memory.PAGE_WORDS + ((target >>> 2) & (Memory.PAGE_WORDS - 1));
+        } else {
+            page = Math.min(-page - 1, pages.length - 1);
+            row = page * Memory.PAGE_WORDS;
+        }
+        memoryTable.setRowSelectionInterval(row, row);
+        memoryTable.scrollRectToVisible(memoryTable.getCellRect(row, 0, true));
+    }
+
+    class RegisterModel extends AbstractTableModel {
+
+        private static final long serialVersionUID = 1L;
+        private final int[] values = new int[Machine.REGISTER_COUNT];
+        private final boolean[] changed = new boolean[Machine.REGISTER_COUNT];
+        boolean started;
+
+        void refresh() {
+            for (int n = 0; n < Machine.REGISTER_COUNT; ++n) {
+                final int value = machine.getRegister(n);
+                changed[n] = started && value != values[n];
+                values[n] = value;
+            }
+            started = true;
+            fireTableRowsUpdated(0, Machine.REGISTER_COUNT - 1);
+        }
+
+        @Override
+        public int getRowCount() {
+            return Machine.REGISTER_COUNT;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return 2;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return column == 0 ? "Register" : "Value";
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            return column == 0 ? Machine.getRegisterName(row) : format(values[row]);
+        }
+
+        boolean isChanged(int row) {
+            return changed[row];
+        }
+    }
+
+    class MemoryModel extends AbstractTableModel {
+
+        private static final long serialVersionUID = 1L;
+        int[] pages = new int[0]; // page numbers in ascending order
+        private int pageChanges;
+        private boolean stale = true;
+        // Values of the rows on screen at the last refresh
+        private int shownFirst;
+        private int[] shownAddresses = new int[0];
+        private int[] shownValues = new int[0];
+        private boolean[] changed = new boolean[0];
+
+        void forget() {
+            shownAddresses = new int[0];
+            shownValues = new int[0];
+            changed = new boolean[0];
+            stale = true;
+        }
+
+        void refresh() {
+            final Memory m = machine.getMemory();
+            if (stale || m.getPageChanges() != pageChanges) {
+                // Keep the top row on the same address when pages appear before it
+                final int top = rowAt(memoryTable.getVisibleRect().getLocation());
+                final int topAddress = top >= 0 && top < getRowCount() ? address(top) : 0;
+                pages = m.getPageNumbers();
+                pageChanges = m.getPageChanges();
+                stale = false;
+                fireTableDataChanged();
+                if (top >= 0) {
+                    final int page = Arrays.binarySearch(pages, topAddress >>> Memory.PAGE_BITS);
+                    if (page >= 0) {
+                        final int row = page * Memory.PAGE_WORDS + ((topAddress >>> 2) & (Memory.PAGE_WORDS - 1));
+                        final Rectangle visible = memoryTable.getVisibleRect();
+                        visible.y = memoryTable.getCellRect(row, 0, true).y;
+                        memoryTable.scrollRectToVisible(visible);
+                    }
+                }
+            }
+
+            final Rectangle visible = memoryTable.getVisibleRect();
+            int first = rowAt(visible.getLocation());
+            int last = rowAt(new Point(visible.x, visible.y + visible.height - 1));
+            if (first < 0)
+                first = last = 0;
+            if (last < 0)
+                last = getRowCount() - 1;
+            // Nothing is copied while the table is hidden
+            final int count = getRowCount() == 0 || visible.height <= 0 ? 0 : last - first + 1;
+
+            final HashMap<Integer, Integer> previous = new HashMap<>();
+            for (int i = 0; i < shownAddresses.length; ++i)
+                previous.put(shownAddresses[i], shownValues[i]);
+            shownFirst = first;
+            shownAddresses = new int[count];
+            shownValues = new int[count];
+            changed = new boolean[count];
+            for (int i = 0; i < count; ++i) {
+                shownAddresses[i] = address(first + i);
+                shownValues[i] = read(shownAddresses[i]);
+                final Integer before = previous.get(shownAddresses[i]);
+                changed[i] = before != null && before != shownValues[i];
+            }
+            if (count > 0)
+                fireTableRowsUpdated(first, last);
+        }
+
+        private int rowAt(Point point) {
+            return memoryTable.rowAtPoint(point);
+        }
+
+        int address(int row) {
+            return pages[row / Memory.PAGE_WORDS] << Memory.PAGE_BITS | (row % Memory.PAGE_WORDS) * 4;
+        }
+
+        // Reads without allocating, a page that went away since the last refresh reads as 0
+        private int read(int address) {
+            final int[] page = machine.getMemory().getPage(address >>> Memory.PAGE_BITS);
+            return page == null ? 0 : page[(address >>> 2) & (Memory.PAGE_WORDS - 1)];
+        }
+
+        @Override
+        public int getRowCount() {
+            return pages.length * Memory.PAGE_WORDS;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return 2;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return column == 0 ? "Address" : "Value";
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            final int address = address(row);
+            if (column == 0)
+                return String.format("0x%08x", address);
+            // Rows scrolled into view since the last refresh show the live value
+            final int i = row - shownFirst;
+            final boolean shown = i >= 0 && i < shownAddresses.length && shownAddresses[i] == address;
+            return format(shown ? shownValues[i] : read(address));
+        }
+
+        boolean isChanged(int row) {
+            final int i = row - shownFirst;
+            return i >= 0 && i < changed.length && changed[i] && shownAddresses[i] == address(row);
+        }
+    }
+
+    class ChangedRenderer extends DefaultTableCellRenderer {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                boolean hasFocus, int row, int column) {
+            super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+            final boolean changed = table == registerTable ? registers.isChanged(row) : memory.isChanged(row);
+            if (!isSelected)
+                setBackground(changed && column == 1 ? CHANGED : table.getBackground());
+            return this;
+        }
+    }
+
+}